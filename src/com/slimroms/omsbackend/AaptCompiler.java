@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles overlays with one {@code aapt package} process per overlay.
+ *
+ * A run that takes longer than a minute is killed and counts as a failed compile.
+ */
+public class AaptCompiler implements OverlayCompiler {
+
+    private static final String TAG = "SlimTM-AaptCompiler";
+
+    private static final long COMPILE_TIMEOUT_MS = 60 * 1000;
+
+    private final AaptProvider mAapt;
+    private final ProcessRunner mRunner;
+
+    public AaptCompiler(AaptProvider aapt, ProcessRunner runner) {
+        mAapt = aapt;
+        mRunner = runner;
+    }
+
+    @Override
+    public boolean compile(String overlayPath, String targetApk, File output) {
+        String aapt = mAapt.getPath();
+        if (aapt == null) {
+            Log.e(TAG, "Failed to create overlay - aapt is not available");
+            return false;
+        }
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                aapt, "p",
+                "-M", overlayPath + "/AndroidManifest.xml",
+                "-S", overlayPath + "/res",
+                "-I", FRAMEWORK_RES));
+        if (targetApk != null) {
+            command.add("-I");
+            command.add(targetApk);
+        }
+        command.add("-F");
+        command.add(output.getAbsolutePath());
+        try {
+            final ProcessRunner.Result result = mRunner.run(
+                    command.toArray(new String[command.size()]), COMPILE_TIMEOUT_MS);
+            if (!result.isSuccess() || !TextUtils.isEmpty(result.stderr)) {
+                Log.e(TAG, "aapt: " + result);
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
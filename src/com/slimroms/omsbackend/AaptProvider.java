@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Installs a binary shipped in our assets (aapt) into /data/system/theme/bin.
+ *
+ * The binary is copied once per version of this app and stays there between installs. A
+ * stamp file next to it records the version it came from and its checksum; the binary is
+ * verified against the stamp once per process and the path is served from memory after that.
+ */
+public class AaptProvider {
+
+    private static final String TAG = "SlimTM-AaptProvider";
+
+    private static final File BIN_DIR = new File("/data/system/theme/bin");
+
+    private final Context mContext;
+    private final String mName;
+    private final File mBinary;
+    private final File mStamp;
+    private String mPath;
+
+    public AaptProvider(Context context, String name) {
+        mContext = context;
+        mName = name;
+        mBinary = new File(BIN_DIR, name);
+        mStamp = new File(BIN_DIR, name + ".stamp");
+    }
+
+    /**
+     * @return the path of the verified binary, or null if it could not be provisioned
+     */
+    public synchronized String getPath() {
+        if (mPath != null) {
+            return mPath;
+        }
+        final String version = getVersion();
+        try {
+            final String[] stamp = readStamp();
+            if (stamp != null && stamp[0].equals(version) && mBinary.isFile()
+                    && stamp[1].equals(sha256(mBinary))) {
+                mPath = mBinary.getAbsolutePath();
+                return mPath;
+            }
+            provision(version);
+            mPath = mBinary.getAbsolutePath();
+        } catch (IOException|ErrnoException e) {
+            Log.e(TAG, "Unable to provision " + mName, e);
+        }
+        return mPath;
+    }
+
+    private void provision(String version) throws IOException, ErrnoException {
+        final long start = System.currentTimeMillis();
+        if (!BIN_DIR.exists() && !BIN_DIR.mkdirs()) {
+            throw new IOException("unable to create directory : " + BIN_DIR.getAbsolutePath());
+        }
+        Os.chmod(BIN_DIR.getAbsolutePath(), 0700);
+        final File tmp = new File(BIN_DIR, "." + mName + ".tmp");
+        final String checksum;
+        try {
+            final MessageDigest digest = newDigest();
+            try (InputStream is = mContext.getAssets().open(mName);
+                 OutputStream os = new FileOutputStream(tmp)) {
+                final byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                    os.write(buffer, 0, count);
+                }
+            }
+            checksum = toHex(digest.digest());
+            Os.chmod(tmp.getAbsolutePath(), 0700);
+            if (!tmp.renameTo(mBinary)) {
+                throw new IOException("unable to install " + mBinary.getAbsolutePath());
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+        FileUtils.writeStringToFile(mStamp, version + "\n" + checksum, StandardCharsets.UTF_8);
+        Log.d(TAG, "Provisioned " + mName + " for version " + version + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private String getVersion() {
+        try {
+            return String.valueOf(mContext.getPackageManager()
+                    .getPackageInfo(mContext.getPackageName(), 0).versionCode);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+
+    private String[] readStamp() throws IOException {
+        if (!mStamp.isFile()) {
+            return null;
+        }
+        final String[] stamp = FileUtils.readFileToString(mStamp, StandardCharsets.UTF_8)
+                .trim().split("\n");
+        return stamp.length == 2 ? stamp : null;
+    }
+
+    private static String sha256(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        try (InputStream is = new FileInputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts the assets of a theme.
+ *
+ * One instance exists per (decryptionKey, ivKey) pair. Every thread gets its own cipher and
+ * its own pair of direct buffers, so assets of the same theme can be extracted concurrently.
+ * A theme without a key gets an instance that copies its assets as they are.
+ *
+ * Large assets are decrypted in chunks on several cores: in CBC mode a block only depends on
+ * the ciphertext block before it, so every chunk can be decrypted on its own using the last
+ * ciphertext block of the previous chunk as IV. Only the final chunk carries the padding.
+ */
+public class AssetDecryptor {
+
+    private static final String TAG = "SlimTM-AssetDecryptor";
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String CHUNK_TRANSFORMATION = "AES/CBC/NoPadding";
+    private static final String ENCRYPTED_SUFFIX = ".enc";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_POOLED = 4;
+
+    // assets of at least this size are decrypted in parallel
+    static final long PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+    // multiple of BLOCK_SIZE
+    static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNK_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // chunks read ahead of the workers, bounds the memory used per asset
+    private static final int MAX_PENDING_CHUNKS = CHUNK_THREADS * 2;
+
+    private static ExecutorService sChunkExecutor;
+
+    private static final Map<String, AssetDecryptor> sDecryptors =
+            new LinkedHashMap<String, AssetDecryptor>(MAX_POOLED, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AssetDecryptor> eldest) {
+                    return size() > MAX_POOLED;
+                }
+            };
+
+    // [0] ciphertext, [1] plaintext
+    private static final ThreadLocal<ByteBuffer[]> sBuffers = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            return new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(BUFFER_SIZE),
+                    ByteBuffer.allocateDirect(BUFFER_SIZE + BLOCK_SIZE)
+            };
+        }
+    };
+
+    private static final AtomicLong sAssets = new AtomicLong();
+    private static final AtomicLong sBytes = new AtomicLong();
+    private static final AtomicLong sNanos = new AtomicLong();
+    private static final AtomicLong sParallelAssets = new AtomicLong();
+
+    private final SecretKeySpec mKey;
+    private final IvParameterSpec mIv;
+    private final ThreadLocal<Cipher> mCiphers = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> mChunkCiphers = new ThreadLocal<>();
+
+    private AssetDecryptor(byte[] key, byte[] iv) {
+        mKey = key != null ? new SecretKeySpec(key, "AES") : null;
+        mIv = iv != null ? new IvParameterSpec(iv) : null;
+    }
+
+    /**
+     * @return the decryptor for the given theme key, never null
+     */
+    public static AssetDecryptor get(byte[] key, byte[] iv) {
+        final String id = (key != null ? Arrays.toString(key) : "") + "/"
+                + (iv != null ? Arrays.toString(iv) : "");
+        synchronized (sDecryptors) {
+            AssetDecryptor decryptor = sDecryptors.get(id);
+            if (decryptor == null) {
+                decryptor = new AssetDecryptor(key, iv);
+                sDecryptors.put(id, decryptor);
+            }
+            return decryptor;
+        }
+    }
+
+    public static String getStats() {
+        final long bytes = sBytes.get();
+        final long millis = sNanos.get() / 1000000;
+        return "decrypted assets=" + sAssets.get() + " parallel=" + sParallelAssets.get()
+                + " bytes=" + bytes + " time=" + millis
+                + "ms throughput=" + (millis > 0 ? bytes / 1024 * 1000 / millis : 0) + "KB/s";
+    }
+
+    public boolean hasKey() {
+        return mKey != null && mIv != null;
+    }
+
+    /**
+     * @return the cipher of the calling thread, ready to decrypt a new asset, or null if
+     *         the theme is not encrypted
+     */
+    public Cipher acquire() throws IOException {
+        if (!hasKey()) {
+            return null;
+        }
+        Cipher cipher = mCiphers.get();
+        try {
+            if (cipher == null) {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+                mCiphers.set(cipher);
+            }
+            // resets whatever state a failed decryption left behind
+            cipher.init(Cipher.DECRYPT_MODE, mKey, mIv);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to initialize cipher", e);
+        }
+        return cipher;
+    }
+
+    /**
+     * Opens an asset, decrypting it if the theme only ships {@code <path>.enc}.
+     */
+    public InputStream open(AssetManager am, ThemeAssetIndex index, String path)
+            throws IOException {
+        if (index.isEncrypted(path)) {
+            final Cipher cipher = acquire();
+            if (cipher != null) {
+                return new CipherInputStream(am.open(path + ENCRYPTED_SUFFIX), cipher);
+            }
+        }
+        return am.open(path);
+    }
+
+    /**
+     * Copies an asset to dest, decrypting it if the theme only ships {@code <path>.enc}.
+     */
+    public void copyAsset(AssetManager am, ThemeAssetIndex index, String path, File dest)
+            throws IOException {
+        final boolean encrypted = index.isEncrypted(path) && hasKey();
+        if (!encrypted && !index.exists(path)) {
+            throw new FileNotFoundException(path);
+        }
+        final File parent = dest.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent.getPath());
+        }
+        try (InputStream is = am.open(encrypted ? path + ENCRYPTED_SUFFIX : path);
+             FileOutputStream os = new FileOutputStream(dest)) {
+            if (encrypted && index.getSize(path) >= PARALLEL_THRESHOLD && CHUNK_THREADS > 1) {
+                decryptParallel(is, os.getChannel());
+            } else if (encrypted) {
+                decrypt(is, os.getChannel());
+            } else {
+                copy(is, os.getChannel());
+            }
+        }
+    }
+
+    private void decrypt(InputStream is, FileChannel out) throws IOException {
+        final long start = System.nanoTime();
+        final Cipher cipher = acquire();
+        final ByteBuffer[] buffers = sBuffers.get();
+        final ByteBuffer cipherText = buffers[0];
+        final ByteBuffer plainText = buffers[1];
+        final ReadableByteChannel in = Channels.newChannel(is);
+        long total = 0;
+        try {
+            cipherText.clear();
+            while (in.read(cipherText) >= 0) {
+                if (cipherText.hasRemaining()) {
+                    continue;
+                }
+                cipherText.flip();
+                total += cipherText.remaining();
+                plainText.clear();
+                cipher.update(cipherText, plainText);
+                write(plainText, out);
+                cipherText.clear();
+            }
+            cipherText.flip();
+            total += cipherText.remaining();
+            plainText.clear();
+            cipher.doFinal(cipherText, plainText);
+            write(plainText, out);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt asset", e);
+        }
+        sAssets.incrementAndGet();
+        sBytes.addAndGet(total);
+        sNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    void decryptParallel(InputStream is, final FileChannel out) throws IOException {
+        final long start = System.nanoTime();
+        final ExecutorService executor = getChunkExecutor();
+        final Semaphore pending = new Semaphore(MAX_PENDING_CHUNKS);
+        final List<Future<Void>> chunks = new ArrayList<>();
+        long total = 0;
+        try {
+            byte[] iv = mIv.getIV();
+            byte[] chunk = readChunk(is);
+            while (true) {
+                pending.acquire();
+                final byte[] next = chunk.length == CHUNK_SIZE ? readChunk(is) : new byte[0];
+                if (next.length == 0) {
+                    // the last chunk carries the padding, decrypt it here
+                    try {
+                        writeChunk(decryptChunk(acquire(), iv, chunk), total, out);
+                    } finally {
+                        pending.release();
+                    }
+                    total += chunk.length;
+                    break;
+                }
+                final byte[] data = chunk;
+                final byte[] chunkIv = iv;
+                final long position = total;
+                chunks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            writeChunk(decryptChunk(getChunkCipher(), chunkIv, data),
+                                    position, out);
+                        } finally {
+                            pending.release();
+                        }
+                        return null;
+                    }
+                }));
+                iv = Arrays.copyOfRange(data, data.length - BLOCK_SIZE, data.length);
+                total += data.length;
+                chunk = next;
+            }
+            for (Future<Void> f : chunks) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting asset", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Unable to decrypt asset", cause);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to decrypt asset", e);
+        } finally {
+            for (Future<Void> f : chunks) {
+                f.cancel(false);
+            }
+        }
+        sAssets.incrementAndGet();
+        sParallelAssets.incrementAndGet();
+        sBytes.addAndGet(total);
+        sNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private static byte[] readChunk(InputStream is) throws IOException {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0;
+        int count;
+        while (length < CHUNK_SIZE && (count = is.read(chunk, length, CHUNK_SIZE - length)) > 0) {
+            length += count;
+        }
+        return length == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    private byte[] decryptChunk(Cipher cipher, byte[] iv, byte[] chunk)
+            throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, mKey, new IvParameterSpec(iv));
+        return cipher.doFinal(chunk);
+    }
+
+    private Cipher getChunkCipher() throws GeneralSecurityException {
+        Cipher cipher = mChunkCiphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CHUNK_TRANSFORMATION);
+            mChunkCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private static void writeChunk(byte[] data, long position, FileChannel out)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static synchronized ExecutorService getChunkExecutor() {
+        if (sChunkExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(CHUNK_THREADS,
+                    CHUNK_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "OmsBackend-decrypt-"
+                                    + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sChunkExecutor = executor;
+        }
+        return sChunkExecutor;
+    }
+
+    private static void copy(InputStream is, FileChannel out) throws IOException {
+        final ByteBuffer buffer = sBuffers.get()[0];
+        final ReadableByteChannel in = Channels.newChannel(is);
+        buffer.clear();
+        while (in.read(buffer) >= 0) {
+            if (!buffer.hasRemaining()) {
+                write(buffer, out);
+                buffer.clear();
+            }
+        }
+        write(buffer, out);
+    }
+
+    private static void write(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a binary XML document (as found in APKs) for a tree of elements in which only the
+ * android namespace is used.
+ */
+class BinaryXmlWriter {
+
+    static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+    private static final String ANDROID_PREFIX = "android";
+
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+
+    static final class Attribute {
+        final String namespace;
+        final String name;
+        final int resId;
+        final String rawValue;
+        final int dataType;
+        final int data;
+
+        /**
+         * For TYPE_STRING values data is ignored, the raw value is stored in the pool.
+         */
+        Attribute(String namespace, String name, int resId, String rawValue, int dataType,
+                int data) {
+            this.namespace = namespace;
+            this.name = name;
+            this.resId = resId;
+            this.rawValue = rawValue;
+            this.dataType = dataType;
+            this.data = data;
+        }
+    }
+
+    static final class Element {
+        final String name;
+        final List<Attribute> attributes = new ArrayList<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<String> mStrings = new ArrayList<>();
+    private final Map<String, Integer> mIndex = new HashMap<>();
+    private final List<Integer> mResIds = new ArrayList<>();
+
+    private BinaryXmlWriter() {
+    }
+
+    static byte[] write(Element root) {
+        return new BinaryXmlWriter().writeDocument(root);
+    }
+
+    private byte[] writeDocument(Element root) {
+        // attribute names with a resource id come first, the resource map covers them
+        final List<Attribute> withIds = new ArrayList<>();
+        collectAttributes(root, withIds);
+        Collections.sort(withIds, new Comparator<Attribute>() {
+            @Override
+            public int compare(Attribute a, Attribute b) {
+                return Integer.compare(a.resId, b.resId);
+            }
+        });
+        for (Attribute attr : withIds) {
+            if (!mIndex.containsKey(attr.name)) {
+                mIndex.put(attr.name, mStrings.size());
+                mStrings.add(attr.name);
+                mResIds.add(attr.resId);
+            }
+        }
+        final int prefix = index(ANDROID_PREFIX);
+        final int uri = index(ANDROID_NS);
+
+        final ResourceChunkBuffer body = new ResourceChunkBuffer();
+        int chunk = startNode(body, ResourceChunkBuffer.RES_XML_START_NAMESPACE_TYPE);
+        body.putInt(prefix);
+        body.putInt(uri);
+        body.endChunk(chunk);
+        writeElement(body, root, uri);
+        chunk = startNode(body, ResourceChunkBuffer.RES_XML_END_NAMESPACE_TYPE);
+        body.putInt(prefix);
+        body.putInt(uri);
+        body.endChunk(chunk);
+
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        final int xml = b.startChunk(ResourceChunkBuffer.RES_XML_TYPE, 8);
+        b.putStringPool(mStrings);
+        final int map = b.startChunk(ResourceChunkBuffer.RES_XML_RESOURCE_MAP_TYPE, 8);
+        for (int id : mResIds) {
+            b.putInt(id);
+        }
+        b.endChunk(map);
+        b.putBytes(body.toByteArray());
+        b.endChunk(xml);
+        return b.toByteArray();
+    }
+
+    private void writeElement(ResourceChunkBuffer b, Element element, int uri) {
+        final List<Attribute> attributes = new ArrayList<>(element.attributes);
+        // the framework walks attributes in resource id order
+        Collections.sort(attributes, new Comparator<Attribute>() {
+            @Override
+            public int compare(Attribute a, Attribute c) {
+                if (a.resId != 0 && c.resId != 0) {
+                    return Integer.compare(a.resId, c.resId);
+                }
+                return a.resId != 0 ? -1 : (c.resId != 0 ? 1 : 0);
+            }
+        });
+
+        int chunk = startNode(b, ResourceChunkBuffer.RES_XML_START_ELEMENT_TYPE);
+        b.putInt(ResourceChunkBuffer.NO_INDEX);
+        b.putInt(index(element.name));
+        // attributeStart, attributeSize
+        b.putShort(20);
+        b.putShort(ATTRIBUTE_SIZE);
+        b.putShort(attributes.size());
+        // idIndex, classIndex, styleIndex
+        b.putShort(0);
+        b.putShort(0);
+        b.putShort(0);
+        for (Attribute attr : attributes) {
+            final boolean string = attr.dataType == ResourceTableWriter.TYPE_STRING;
+            final int raw = string ? index(attr.rawValue) : ResourceChunkBuffer.NO_INDEX;
+            b.putInt(attr.namespace != null ? uri : ResourceChunkBuffer.NO_INDEX);
+            b.putInt(index(attr.name));
+            b.putInt(raw);
+            // Res_value
+            b.putShort(8);
+            b.putByte(0);
+            b.putByte(attr.dataType);
+            b.putInt(string ? raw : attr.data);
+        }
+        b.endChunk(chunk);
+
+        for (Element child : element.children) {
+            writeElement(b, child, uri);
+        }
+
+        chunk = startNode(b, ResourceChunkBuffer.RES_XML_END_ELEMENT_TYPE);
+        b.putInt(ResourceChunkBuffer.NO_INDEX);
+        b.putInt(index(element.name));
+        b.endChunk(chunk);
+    }
+
+    private static int startNode(ResourceChunkBuffer b, int type) {
+        final int chunk = b.startChunk(type, NODE_HEADER_SIZE);
+        // lineNumber, comment
+        b.putInt(1);
+        b.putInt(ResourceChunkBuffer.NO_INDEX);
+        return chunk;
+    }
+
+    private void collectAttributes(Element element, List<Attribute> out) {
+        for (Attribute attr : element.attributes) {
+            if (attr.resId != 0) {
+                out.add(attr);
+            }
+        }
+        for (Element child : element.children) {
+            collectAttributes(child, out);
+        }
+    }
+
+    private int index(String s) {
+        Integer i = mIndex.get(s);
+        if (i == null) {
+            i = mStrings.size();
+            mIndex.put(s, i);
+            mStrings.add(s);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the artifacts stored below the service cache directory within a byte budget.
+ *
+ * Artifacts are files or directories that are created and removed as a whole. The least
+ * recently used ones are evicted on a background thread once the budget is exceeded.
+ * The budget defaults to 256MB, can be changed with {@code persist.omsbackend.cache_mb} and
+ * never exceeds a tenth of the free space on /data.
+ */
+public class CacheManager {
+
+    private static final String TAG = "SlimTM-CacheManager";
+
+    private static final String PROP_BUDGET = "persist.omsbackend.cache_mb";
+    private static final long DEFAULT_BUDGET_MB = 256;
+    private static final int MAX_FREE_SPACE_PERCENT = 10;
+
+    // artifacts used this recently are never evicted, they might still be read from
+    private static final long MIN_AGE_MS = 60 * 1000;
+
+    private static final class Artifact {
+        final File file;
+        long size;
+        long lastAccess;
+
+        Artifact(File file, long size, long lastAccess) {
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final File mRoot;
+    private final Map<String, Artifact> mArtifacts = new HashMap<>();
+    private long mTotalSize;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trim();
+        }
+    };
+
+    public CacheManager(File root) {
+        mRoot = root;
+        mThread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Stops the background thread once the pending bookkeeping is done.
+     */
+    public void close() {
+        mThread.quitSafely();
+    }
+
+    /**
+     * Registers an artifact found on disk at startup, using its modification time as the
+     * last access time.
+     */
+    public void restore(final File file) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CacheManager.this) {
+                    if (!mArtifacts.containsKey(file.getPath())) {
+                        add(new Artifact(file, sizeOf(file), file.lastModified()));
+                    }
+                }
+                scheduleTrim();
+            }
+        });
+    }
+
+    /**
+     * Registers a newly created artifact.
+     */
+    public void onCreated(final File file) {
+        mMisses.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        file.setLastModified(now);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CacheManager.this) {
+                    remove(file);
+                    add(new Artifact(file, sizeOf(file), now));
+                }
+                scheduleTrim();
+            }
+        });
+    }
+
+    /**
+     * Marks an artifact as used.
+     */
+    public void onHit(File file) {
+        mHits.incrementAndGet();
+        final long now = System.currentTimeMillis();
+        // persisted for restore()
+        file.setLastModified(now);
+        synchronized (this) {
+            final Artifact artifact = mArtifacts.get(file.getPath());
+            if (artifact != null) {
+                artifact.lastAccess = now;
+            }
+        }
+    }
+
+    /**
+     * Forgets the given artifact, or all artifacts below the given directory.
+     */
+    public synchronized void onDeleted(File file) {
+        final String prefix = file.getPath() + "/";
+        final List<File> removed = new ArrayList<>();
+        for (Artifact artifact : mArtifacts.values()) {
+            if (artifact.file.equals(file) || artifact.file.getPath().startsWith(prefix)) {
+                removed.add(artifact.file);
+            }
+        }
+        for (File f : removed) {
+            remove(f);
+        }
+    }
+
+    public String getStats() {
+        synchronized (this) {
+            return "artifacts=" + mArtifacts.size() + " size=" + mTotalSize
+                    + " budget=" + getBudget() + " hits=" + mHits.get()
+                    + " misses=" + mMisses.get() + " evictions=" + mEvictions.get();
+        }
+    }
+
+    private void add(Artifact artifact) {
+        mArtifacts.put(artifact.file.getPath(), artifact);
+        mTotalSize += artifact.size;
+    }
+
+    private void remove(File file) {
+        final Artifact artifact = mArtifacts.remove(file.getPath());
+        if (artifact != null) {
+            mTotalSize -= artifact.size;
+        }
+    }
+
+    private void scheduleTrim() {
+        mHandler.removeCallbacks(mTrimRunnable);
+        mHandler.post(mTrimRunnable);
+    }
+
+    private long getBudget() {
+        final long budget = SystemProperties.getLong(PROP_BUDGET, DEFAULT_BUDGET_MB)
+                * 1024 * 1024;
+        final long freeSpaceLimit = (mRoot.getUsableSpace() + mTotalSize)
+                * MAX_FREE_SPACE_PERCENT / 100;
+        return Math.min(budget, freeSpaceLimit);
+    }
+
+    private void trim() {
+        final List<Artifact> victims = new ArrayList<>();
+        synchronized (this) {
+            final long budget = getBudget();
+            if (mTotalSize <= budget) {
+                return;
+            }
+            final List<Artifact> artifacts = new ArrayList<>(mArtifacts.values());
+            Collections.sort(artifacts, new Comparator<Artifact>() {
+                @Override
+                public int compare(Artifact a, Artifact b) {
+                    return Long.compare(a.lastAccess, b.lastAccess);
+                }
+            });
+            final long minAccess = System.currentTimeMillis() - MIN_AGE_MS;
+            long size = mTotalSize;
+            for (Artifact artifact : artifacts) {
+                if (size <= budget || artifact.lastAccess > minAccess) {
+                    break;
+                }
+                victims.add(artifact);
+                size -= artifact.size;
+                remove(artifact.file);
+            }
+        }
+        for (Artifact artifact : victims) {
+            // move it out of the way first so nobody picks up a half deleted artifact
+            final File trash = new File(artifact.file.getParentFile(),
+                    ".evict-" + UUID.randomUUID());
+            if (artifact.file.renameTo(trash)) {
+                FileUtils.deleteQuietly(trash);
+            } else {
+                FileUtils.deleteQuietly(artifact.file);
+            }
+            mEvictions.incrementAndGet();
+        }
+        if (!victims.isEmpty()) {
+            Log.d(TAG, "Evicted " + victims.size() + " artifacts, " + getStats());
+        }
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        return file.isDirectory() ? FileUtils.sizeOfDirectory(file) : file.length();
+    }
+}
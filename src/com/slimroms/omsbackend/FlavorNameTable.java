@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Display names of the type1a/type1b/type1c/type2/type3 flavors of a theme.
+ *
+ * The names are stored encrypted in one small asset per flavor. They are decrypted in a
+ * single pass the first time a theme version is looked at and kept in memory and in
+ * {@code files/flavor-names/<theme>.json} until the theme is updated.
+ */
+public class FlavorNameTable {
+
+    private static final String TAG = "SlimTM-FlavorNameTable";
+
+    private static final String TABLE_DIR = "flavor-names";
+    private static final int TABLE_VERSION = 1;
+    private static final String[] FLAVORS = { "type1a", "type1b", "type1c", "type2", "type3" };
+
+    private static FlavorNameTable sInstance;
+
+    private static final class Table {
+        int version;
+        int versionCode;
+        long lastUpdateTime;
+        // asset path without .enc -> display name
+        Map<String, String> names;
+    }
+
+    private final File mDir;
+    private final Gson mGson = new GsonBuilder().create();
+    private final Map<String, Table> mTables = new HashMap<>();
+
+    private FlavorNameTable(Context context) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        mDir = new File(appContext.getFilesDir(), TABLE_DIR);
+    }
+
+    public static synchronized FlavorNameTable getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FlavorNameTable(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the flavor names of the theme, keyed by asset path (e.g.
+     *         {@code overlays/android/type3}). Flavors that could not be read are missing.
+     */
+    public synchronized Map<String, String> getNames(Context themeContext,
+            AssetDecryptor decryptor) {
+        final String packageName = themeContext.getPackageName();
+        final PackageInfo info;
+        try {
+            info = themeContext.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return new HashMap<>();
+        }
+        Table table = mTables.get(packageName);
+        if (!isCurrent(table, info)) {
+            table = readTable(packageName);
+            if (!isCurrent(table, info)) {
+                table = buildTable(themeContext, info, decryptor);
+                writeTable(packageName, table);
+            }
+            mTables.put(packageName, table);
+        }
+        return table.names;
+    }
+
+    public synchronized void onPackageRemoved(String packageName) {
+        mTables.remove(packageName);
+        FileUtils.deleteQuietly(getTableFile(packageName));
+    }
+
+    private static boolean isCurrent(Table table, PackageInfo info) {
+        return table != null && table.version == TABLE_VERSION && table.names != null
+                && table.versionCode == info.versionCode
+                && table.lastUpdateTime == info.lastUpdateTime;
+    }
+
+    private Table buildTable(Context themeContext, PackageInfo info,
+            AssetDecryptor decryptor) {
+        final long start = System.currentTimeMillis();
+        final Table table = new Table();
+        table.version = TABLE_VERSION;
+        table.versionCode = info.versionCode;
+        table.lastUpdateTime = info.lastUpdateTime;
+        table.names = new HashMap<>();
+        final ThemeAssetIndex index;
+        try {
+            index = ThemeAssetIndex.get(themeContext);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to index " + info.packageName, e);
+            return table;
+        }
+        for (String target : index.list("overlays")) {
+            final String dir = "overlays/" + target;
+            for (String flavor : FLAVORS) {
+                final String path = dir + "/" + flavor;
+                if (index.isDirectory(path) || index.getSize(path) < 0) {
+                    continue;
+                }
+                try (InputStream is = decryptor.open(themeContext.getAssets(), index, path)) {
+                    table.names.put(path, IOUtils.toString(is, Charset.defaultCharset()));
+                } catch (IOException e) {
+                    // ignore, same as a missing flavor
+                }
+            }
+        }
+        Log.d(TAG, "Read " + table.names.size() + " flavor names of " + info.packageName
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+        return table;
+    }
+
+    private File getTableFile(String packageName) {
+        return new File(mDir, packageName + ".json");
+    }
+
+    private Table readTable(String packageName) {
+        final File file = getTableFile(packageName);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return mGson.fromJson(FileUtils.readFileToString(file, Charset.defaultCharset()),
+                    Table.class);
+        } catch (IOException|JsonParseException e) {
+            Log.e(TAG, "Unable to read " + file.getPath(), e);
+            return null;
+        }
+    }
+
+    private void writeTable(String packageName, Table table) {
+        final File file = getTableFile(packageName);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, mGson.toJson(table), Charset.defaultCharset());
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Unable to write " + file.getPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.pm.PackageInstaller;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Installs overlays through several PackageInstaller sessions at once.
+ *
+ * Sessions are created and written on the calling threads (the build pool), at most
+ * {@code maxInFlight} of them are open or committing at any time; callers block until a
+ * slot is free. Results are reported per session. A session whose status does not arrive
+ * within {@link PackageManagerUtils#COMMIT_TIMEOUT_MS} is abandoned, so a lost status
+ * intent can not hold its slot forever.
+ */
+public class InstallSessionManager {
+
+    private static final String TAG = "SlimTM-InstallSessionManager";
+
+    private static final ScheduledThreadPoolExecutor sDeadlines =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "OmsBackend-session-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        // most sessions finish long before their deadline
+        sDeadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    private final PackageManagerUtils mPMUtils;
+    private final Semaphore mSlots;
+    private final int mMaxInFlight;
+
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mPeakInFlight = new AtomicInteger();
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    public InstallSessionManager(PackageManagerUtils pmUtils, int maxInFlight) {
+        mPMUtils = pmUtils;
+        mMaxInFlight = maxInFlight;
+        mSlots = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Writes the overlay into a new session and commits it.
+     *
+     * @return the PackageInstaller status of the session, STATUS_FAILURE if no slot got free
+     *         in time
+     */
+    public CompletableFuture<Integer> install(final OverlayApk apk, final String packageName)
+            throws InterruptedException {
+        if (!mSlots.tryAcquire(PackageManagerUtils.COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            Log.e(TAG, "No free session for " + packageName);
+            mFailed.incrementAndGet();
+            return CompletableFuture.completedFuture(PackageInstaller.STATUS_FAILURE);
+        }
+        final long start = System.currentTimeMillis();
+        final int inFlight = mInFlight.incrementAndGet();
+        int peak;
+        while ((peak = mPeakInFlight.get()) < inFlight
+                && !mPeakInFlight.compareAndSet(peak, inFlight)) {
+            // retry
+        }
+        CompletableFuture<Integer> status = null;
+        try {
+            status = apk.data != null
+                    ? mPMUtils.installPackageAsync(apk.data)
+                    : mPMUtils.installPackageAsync(apk.file.getAbsolutePath());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to create session for " + packageName, e);
+            status = CompletableFuture.completedFuture(PackageInstaller.STATUS_FAILURE);
+        } finally {
+            if (status == null) {
+                // unexpected exception on the way out
+                release();
+            }
+        }
+        final CompletableFuture<Integer> session = status;
+        final ScheduledFuture<?> deadline = sDeadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // abandons the session, which completes it and frees the slot
+                if (session.cancel(true)) {
+                    Log.e(TAG, "No status for " + packageName + " after "
+                            + PackageManagerUtils.COMMIT_TIMEOUT_MS + "ms");
+                }
+            }
+        }, PackageManagerUtils.COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        status.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer result, Throwable error) {
+                deadline.cancel(false);
+                release();
+                if (result != null && result == PackageInstaller.STATUS_SUCCESS) {
+                    mSucceeded.incrementAndGet();
+                    Log.d(TAG, "Installed " + packageName + " in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                } else {
+                    mFailed.incrementAndGet();
+                    Log.e(TAG, "Failed to install " + packageName + " (status " + result
+                            + (error != null ? ", " + error : "") + ")");
+                }
+            }
+        });
+        return status;
+    }
+
+    public String getStats() {
+        return "sessions ok=" + mSucceeded.get() + " failed=" + mFailed.get()
+                + " peakInFlight=" + mPeakInFlight.get() + "/" + mMaxInFlight;
+    }
+
+    private void release() {
+        mInFlight.decrementAndGet();
+        mSlots.release();
+    }
+}
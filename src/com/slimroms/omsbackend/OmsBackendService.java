@@ -35,9 +35,10 @@ import android.content.om.IOverlayManager;
 import android.content.om.OverlayInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
 import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.FontListParser;
 import android.graphics.Typeface;
@@ -48,6 +49,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.MediaStore;
@@ -62,9 +64,7 @@ import android.view.WindowManager;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.slimroms.themecore.*;
-import kellinwood.security.zipsigner.ZipSigner;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xmlpull.v1.XmlPullParser;
@@ -72,12 +72,22 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.*;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.*;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -87,13 +97,6 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import static org.apache.commons.io.FileUtils.copyInputStreamToFile;
-
 public class OmsBackendService extends BaseThemeService {
 
     private static final String TAG = "SlimTM-OmsBackendService";
@@ -106,6 +109,25 @@ public class OmsBackendService extends BaseThemeService {
     private static final String THEME_FONT_METADATA =
             "/data/system/theme/font-meta.json";
 
+    // one per getThemeContent section, so none of them waits for a thread
+    private static final int CONTENT_THREADS = 5;
+    // aapt is mostly single threaded, but memory hungry
+    private static final int BUILD_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // how many overlays may be built ahead of the one being installed
+    private static final String PROP_BUILD_AHEAD = "persist.omsbackend.build_ahead";
+    private static final int DEFAULT_BUILD_AHEAD = BUILD_THREADS * 2;
+    // how many install sessions may be open or committing at once
+    private static final String PROP_INSTALL_SESSIONS = "persist.omsbackend.install_sessions";
+    private static final int DEFAULT_INSTALL_SESSIONS = 4;
+    // keep overlays of a previous theme installed and disabled instead of uninstalling them,
+    // on unless set to false
+    private static final String PROP_PARK_OVERLAYS = "persist.omsbackend.park_overlays";
+    private static final long OVERLAY_READY_TIMEOUT_MS = 10 * 1000;
+    private static final long CONTENT_DEADLINE_MS = 20000;
+    private static final long CONTENT_SECTION_TIMEOUT_MS = 15000;
+    private static final long WALLPAPERS_TIMEOUT_MS = 5000;
+
     public static final String[] ALLOWED_SOUNDS = {
             "alarm.mp3",
             "alarm.ogg",
@@ -124,11 +146,31 @@ public class OmsBackendService extends BaseThemeService {
     private HashMap<String, String> mSystemUIPackages = new HashMap<>();
 
     private PackageManagerUtils mPMUtils;
+    private ThemeCatalog mThemeCatalog;
+    private CacheManager mCacheManager;
+    private ThemeAssetCache mAssetCache;
+    private OverlayArtifactCache mArtifactCache;
+    private ProcessRunner mProcessRunner;
+    private OverlayCompiler mCompiler;
+    private final OverlaySigner mSigner = new OverlaySigner();
+    private ValuesOverlayCompiler mValuesCompiler;
+    private OverlayMetadataCache mOverlayMetadata;
+    private OverlayVersionTable mOverlayVersions;
+    private OverlayReadyWaiter mOverlayWaiter;
+    // OVERLAY_CHANGED is only sent to registered receivers
+    private final PackageChangeReceiver mOverlayChangeReceiver = new PackageChangeReceiver();
+    private ParkedOverlays mParkedOverlays;
     private IOverlayManager mOverlayManager;
     private ConnectivityManager mConnectivityManager;
 
     private boolean mReboot = false;
 
+    private ExecutorService mContentExecutor;
+    private ExecutorService mExtractExecutor;
+    private ExecutorService mBuildExecutor;
+    private final Map<String, FutureTask<Void>> mExtractions = new HashMap<>();
+    private Future<?> mSessionCleanup;
+
     private Map<String, List<OverlayInfo>> mOverlays = new HashMap<>();
 
     @Override
@@ -140,7 +182,74 @@ public class OmsBackendService extends BaseThemeService {
         mSystemUIPackages.put("com.android.systemui.tiles", "System UI QS Tile Icons");
 
         mOverlayManager = IOverlayManager.Stub.asInterface(ServiceManager.getService("overlay"));
+        mOverlayWaiter = new OverlayReadyWaiter(this, mOverlayManager);
+        mOverlayWaiter.register();
+        final IntentFilter overlayFilter =
+                new IntentFilter(PackageChangeReceiver.ACTION_OVERLAY_CHANGED);
+        overlayFilter.addDataScheme("package");
+        registerReceiver(mOverlayChangeReceiver, overlayFilter);
         mConnectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        mThemeCatalog = ThemeCatalog.getInstance(this);
+        mOverlayMetadata = OverlayMetadataCache.getInstance(this);
+        mOverlayVersions = OverlayVersionTable.getInstance(this);
+        mParkedOverlays = ParkedOverlays.getInstance(this);
+        mCacheManager = new CacheManager(getCacheDir());
+        mAssetCache = new ThemeAssetCache(getCacheDir(), mCacheManager);
+        mAssetCache.restore();
+        mArtifactCache = new OverlayArtifactCache(getCacheDir(), mCacheManager);
+        mArtifactCache.restore();
+        mProcessRunner = new ProcessRunner();
+        mCompiler = new AaptCompiler(new AaptProvider(this, "aapt"), mProcessRunner);
+        mValuesCompiler = new ValuesOverlayCompiler(
+                new ValuesOverlayCompiler.ReferenceResolver() {
+                    @Override
+                    public int getFrameworkIdentifier(String type, String name) {
+                        return Resources.getSystem().getIdentifier(name, type, "android");
+                    }
+                }, mCompiler);
+        mContentExecutor = Executors.newFixedThreadPool(CONTENT_THREADS);
+        mExtractExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(
+                                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "OmsBackend-extract");
+            }
+        });
+        mBuildExecutor = Executors.newFixedThreadPool(BUILD_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "OmsBackend-build-" + mCount.incrementAndGet());
+            }
+        });
+        // sessions of a run that died before committing them stay around otherwise, installs
+        // wait for this so it can not abandon their sessions
+        mSessionCleanup = mBuildExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                new PackageManagerUtils(getBaseContext()).abandonMySessions();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        mContentExecutor.shutdownNow();
+        mExtractExecutor.shutdownNow();
+        mBuildExecutor.shutdownNow();
+        mOverlayWaiter.unregister();
+        unregisterReceiver(mOverlayChangeReceiver);
+        mProcessRunner.cancelAll();
+        mCompiler.close();
+        mCacheManager.close();
+        super.onDestroy();
     }
 
     @Override
@@ -162,27 +271,10 @@ public class OmsBackendService extends BaseThemeService {
 
         @Override
         public int getThemePackages(List<Theme> themes) throws RemoteException {
-            PackageManager pm = getPackageManager();
-            if (pm != null) {
-                List<ApplicationInfo> apps =
-                        pm.getInstalledApplications(PackageManager.GET_META_DATA);
-                for (ApplicationInfo info : apps) {
-                    if (!info.enabled || info.metaData == null) {
-                        continue;
-                    }
-                    String name = info.metaData.getString("Substratum_Name");
-                    String author = info.metaData.getString("Substratum_Author");
-                    if (!TextUtils.isEmpty(name)) {
-                        try {
-                            PackageInfo pInfo = pm.getPackageInfo(info.packageName, 0);
-                            Theme theme = createTheme(name, info.packageName,
-                                    pInfo.versionName, pInfo.versionCode, author, null);
-                            themes.add(theme);
-                        } catch (PackageManager.NameNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
+            for (ThemeCatalog.Entry entry : mThemeCatalog.getThemes()) {
+                Theme theme = createTheme(entry.name, entry.packageName,
+                        entry.versionName, entry.versionCode, entry.author, null);
+                themes.add(theme);
             }
             Collections.sort(themes);
             return themes.size();
@@ -203,59 +295,33 @@ public class OmsBackendService extends BaseThemeService {
             }
 
             OverlayGroup overlayGroup = new OverlayGroup();
+            mOverlayMetadata.prefetch(overlayInfos);
             for (List<OverlayInfo> overlays : overlayInfos.values()) {
                 for (OverlayInfo overlayInfo : overlays) {
                     if (overlayInfo.state != OverlayInfo.STATE_APPROVED_ENABLED)
                         continue;
-                    Overlay overlay = null;
-                    ApplicationInfo aInfo;
-                    try {
-                        aInfo = getPackageManager().getApplicationInfo(overlayInfo.packageName,
-                                PackageManager.GET_META_DATA);
-                    } catch (PackageManager.NameNotFoundException e) {
-                        continue;
-                    }
-                    if (aInfo.metaData == null) {
-                        Log.e(TAG, "overlay is missing metaData");
+                    OverlayMetadataCache.Entry metadata = mOverlayMetadata.get(
+                            overlayInfo.packageName, overlayInfo.targetPackageName);
+                    if (metadata == null) {
                         continue;
                     }
-                    String targetPackage = aInfo.metaData.getString("target_package",
-                            overlayInfo.targetPackageName);
-                    boolean targetPackageInstalled;
-                    ApplicationInfo targetInfo = null;
-                    try {
-                        targetInfo =
-                                getPackageManager().getApplicationInfo(targetPackage, 0);
-                        targetPackageInstalled = true;
-                    }
-                    catch (PackageManager.NameNotFoundException ex) {
-                        targetPackageInstalled = false;
-                    }
+                    String targetPackage = metadata.targetPackage;
+                    Overlay overlay;
                     if (isSystemUIOverlay(targetPackage)) {
                         overlay = new Overlay(getSystemUIOverlayName(targetPackage),
-                                targetPackage, targetPackageInstalled);
+                                targetPackage, metadata.targetPackageInstalled);
                     } else {
-                        String overlayName = (targetInfo != null)
-                                ? targetInfo.loadLabel(getPackageManager()).toString()
-                                : aInfo.loadLabel(getPackageManager()).toString();
-                        overlay = new Overlay(overlayName, targetPackage, targetPackageInstalled);
-                    }
-                    if (overlay != null) {
-                        overlay.overlayPackage = overlayInfo.packageName;
-                        overlay.isOverlayEnabled =
-                                (overlayInfo.state == OverlayInfo.STATE_APPROVED_ENABLED);
-                        overlay.overlayVersion = aInfo.metaData.getInt("overlay_version", -1);
-                        overlay.themeVersion = aInfo.metaData.getString("theme_version", "");
-                        overlay.themePackage = aInfo.metaData.getString("theme_package", null);
-                        if (overlay.themePackage == null) {
-                            // fallback substratum compatibility
-                            overlay.themePackage =
-                                    String.format("%s (Substratum)",
-                                            aInfo.metaData.getString("Substratum_Parent", null));
-                        }
-                        overlay.isOverlayInstalled = true;
-                        overlayGroup.overlays.add(overlay);
+                        overlay = new Overlay(metadata.label, targetPackage,
+                                metadata.targetPackageInstalled);
                     }
+                    overlay.overlayPackage = overlayInfo.packageName;
+                    overlay.isOverlayEnabled =
+                            (overlayInfo.state == OverlayInfo.STATE_APPROVED_ENABLED);
+                    overlay.overlayVersion = metadata.overlayVersion;
+                    overlay.themeVersion = metadata.themeVersion;
+                    overlay.themePackage = metadata.themePackage;
+                    overlay.isOverlayInstalled = true;
+                    overlayGroup.overlays.add(overlay);
                 }
             }
             if (!overlayGroup.overlays.isEmpty()) {
@@ -312,121 +378,100 @@ public class OmsBackendService extends BaseThemeService {
         }
 
         @Override
-        public void getThemeContent(Theme theme, OverlayThemeInfo info) throws RemoteException {
+        public void getThemeContent(final Theme theme, OverlayThemeInfo info)
+                throws RemoteException {
             PackageManager pm = getPackageManager();
             if (pm != null) {
-                ThemePrefs prefs = getThemePrefs(theme.packageName + "_prefs");
-                Cipher cipher = null;
+                final ThemePrefs prefs = getThemePrefs(theme.packageName + "_prefs");
                 try {
-                    cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(theme.decryptionKey, "AES"),
-                            new IvParameterSpec(theme.ivKey));
-                } catch (NoSuchAlgorithmException|NoSuchPaddingException|InvalidAlgorithmParameterException|InvalidKeyException e) {
-                    e.printStackTrace();
-                }
-
-                try {
-                    Context themeContext =
+                    final Context themeContext =
                             getBaseContext().createPackageContext(theme.packageName, 0);
-                    String[] olays = themeContext.getAssets().list("overlays");
-                    if (olays.length > 0) {
-                        info.groups.put(OverlayGroup.OVERLAYS,
-                                getOverlays(themeContext, olays, prefs, cipher));
+                    final File themeAssets = mAssetCache.getThemeDir(pm, theme.packageName);
+                    // previews of other themes are not needed anymore
+                    cancelExtractions(theme.packageName);
+                    final ApplicationInfo aInfo = getPackageManager().getApplicationInfo(
+                            theme.packageName, PackageManager.GET_META_DATA);
+                    final String wallpapersXmlUri =
+                            aInfo.metaData.getString("Substratum_Wallpapers");
+
+                    // every section is independent, build them side by side and leave out
+                    // the ones that do not make it in time
+                    final long start = SystemClock.elapsedRealtime();
+                    // wallpapers have the shortest budget and wait on the network, they go
+                    // first and are still listed last
+                    Future<OverlayGroup> wallpapers = null;
+                    if (wallpapersXmlUri != null && isOnline()) {
+                        wallpapers = mContentExecutor.submit(new Callable<OverlayGroup>() {
+                            @Override
+                            public OverlayGroup call() throws Exception {
+                                return getWallpapers(wallpapersXmlUri);
+                            }
+                        });
                     }
-                    File themeCache = setupCache(theme.packageName);
-                    String[] fonts = themeContext.getAssets().list("fonts");
-                    if (fonts.length > 0) {
-                        OverlayGroup fontGroup = new OverlayGroup();
-                        for (String font : fonts) {
-                            Overlay fon = new Overlay(font, OverlayGroup.FONTS, true);
-                            createFontCache(themeContext, fon, themeCache);
-                            fontGroup.overlays.add(fon);
+                    final Map<String, Future<OverlayGroup>> sections = new LinkedHashMap<>();
+                    sections.put(OverlayGroup.OVERLAYS,
+                            mContentExecutor.submit(new Callable<OverlayGroup>() {
+                        @Override
+                        public OverlayGroup call() throws Exception {
+                            String[] olays = ThemeAssetIndex.get(themeContext).list("overlays");
+                            if (olays.length == 0) {
+                                return null;
+                            }
+                            return getOverlays(themeContext, olays, prefs, getDecryptor(theme));
                         }
-                        info.groups.put(OverlayGroup.FONTS, fontGroup);
-                    }
-
-                    String[] sounds = themeContext.getAssets().list("audio");
-                    if (sounds.length > 0) {
-                        OverlayGroup soundGroup = new OverlayGroup();
-                        for (String sound : sounds) {
-                            String name = sound.substring(0, sound.lastIndexOf("."));
-                            Overlay so = new Overlay(name, OverlayGroup.SOUNDS, true);
-                            so.overlayPackage = sound;
-                            cacheSounds(themeContext, themeCache, so);
-                            soundGroup.overlays.add(so);
+                    }));
+                    sections.put(OverlayGroup.FONTS,
+                            mContentExecutor.submit(new Callable<OverlayGroup>() {
+                        @Override
+                        public OverlayGroup call() throws Exception {
+                            return getFonts(themeContext, themeAssets);
                         }
-                        info.groups.put(OverlayGroup.SOUNDS, soundGroup);
-
-                    }
-
-                    String[] bootanis = themeContext.getAssets().list("bootanimation");
-                    if (bootanis.length > 0) {
-                        OverlayGroup bootanimations = new OverlayGroup();
-                        for (String bootani : bootanis) {
-                            String bootName = bootani.substring(0, bootani.lastIndexOf("."));
-                            // cache bootanimation for further preview
-                            File bootanimFile = new File(getCacheDir(),
-                                    theme.packageName + "/bootanimation/" + bootani);
-                            if (bootanimFile.exists()) {
-                                bootanimFile.delete();
-                            }
-
-                            parseBootanimation(themeContext, bootName, bootanimFile, cipher);
-
-                            try {
-                                Shell.chmod(bootanimFile.getAbsolutePath(), 744);
-                                Shell.chmod(bootanimFile.getParent(), 744);
-                                Shell.chmod(bootanimFile.getParentFile().getParent(), 744);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                            Overlay bootanimation = new Overlay(bootName,
-                                    OverlayGroup.BOOTANIMATIONS, true);
-                            bootanimation.tag = bootanimFile.getAbsolutePath();
-                            bootanimations.overlays.add(bootanimation);
+                    }));
+                    sections.put(OverlayGroup.SOUNDS,
+                            mContentExecutor.submit(new Callable<OverlayGroup>() {
+                        @Override
+                        public OverlayGroup call() throws Exception {
+                            return getSounds(themeContext, themeAssets);
                         }
-                        info.groups.put(OverlayGroup.BOOTANIMATIONS, bootanimations);
+                    }));
+                    sections.put(OverlayGroup.BOOTANIMATIONS,
+                            mContentExecutor.submit(new Callable<OverlayGroup>() {
+                        @Override
+                        public OverlayGroup call() throws Exception {
+                            return getBootanimations(theme, themeContext, themeAssets);
+                        }
+                    }));
+                    if (wallpapers != null) {
+                        sections.put(OverlayGroup.WALLPAPERS, wallpapers);
                     }
 
-                    ApplicationInfo aInfo = getPackageManager().getApplicationInfo(
-                            theme.packageName, PackageManager.GET_META_DATA);
-                    String wallpapersXmlUri = aInfo.metaData.getString("Substratum_Wallpapers");
-                    if (wallpapersXmlUri != null && isOnline()) {
+                    final long deadline = start + CONTENT_DEADLINE_MS;
+                    for (Map.Entry<String, Future<OverlayGroup>> section : sections.entrySet()) {
+                        final long timeout = Math.min(
+                                start + getSectionTimeout(section.getKey()), deadline)
+                                - SystemClock.elapsedRealtime();
                         try {
-                            OverlayGroup wallpapers = new OverlayGroup();
-                            URL url = new URL(wallpapersXmlUri);
-                            InputStream is = url.openStream();
-                            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                            XmlPullParser parser = factory.newPullParser();
-                            parser.setInput(new InputStreamReader(is));
-                            Overlay wallpaper = null;
-                            while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
-                                if (parser.getEventType() == XmlPullParser.START_TAG) {
-                                    if (parser.getName().equals("wallpaper")) {
-                                        String id = parser.getAttributeValue(null, "id");
-                                        wallpaper = new Overlay(id, id, true);
-                                    } else if (parser.getName().equals("link")) {
-                                        assert wallpaper != null;
-                                        wallpaper.tag = parser.nextText();
-                                    }
-                                } else if (parser.getEventType() == XmlPullParser.END_TAG) {
-                                    if (parser.getName().equals("wallpaper")) {
-                                        assert wallpaper != null;
-                                        wallpapers.overlays.add(wallpaper);
-                                    }
-                                }
-                                parser.next();
+                            OverlayGroup group =
+                                    section.getValue().get(Math.max(timeout, 0),
+                                            TimeUnit.MILLISECONDS);
+                            if (group != null) {
+                                info.groups.put(section.getKey(), group);
                             }
-
-                            is.close();
-                            info.groups.put(OverlayGroup.WALLPAPERS, wallpapers);
-                        }
-                        catch (Exception ex) {
-                            // something went wrong, no wallpapers for you
-                            ex.printStackTrace();
+                        } catch (TimeoutException e) {
+                            Log.w(TAG, "getThemeContent: section " + section.getKey()
+                                    + " timed out, omitted");
+                            section.getValue().cancel(true);
+                        } catch (ExecutionException e) {
+                            Log.e(TAG, "getThemeContent: section " + section.getKey()
+                                    + " failed, omitted", e.getCause());
+                        } catch (InterruptedException e) {
+                            section.getValue().cancel(true);
+                            Thread.currentThread().interrupt();
                         }
                     }
-                } catch (PackageManager.NameNotFoundException|IOException e) {
+                    Log.d(TAG, "getThemeContent: " + theme.packageName + " took "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                } catch (PackageManager.NameNotFoundException e) {
                     e.printStackTrace();
                 }
             }
@@ -434,7 +479,7 @@ public class OmsBackendService extends BaseThemeService {
 
         @SuppressLint("SetWorldReadable")
         @Override
-        public boolean installOverlaysFromTheme(Theme theme, OverlayThemeInfo info)
+        public boolean installOverlaysFromTheme(final Theme theme, OverlayThemeInfo info)
                 throws RemoteException {
             final int totalCount = info.getSelectedCount();
             if (totalCount == 0) {
@@ -447,25 +492,24 @@ public class OmsBackendService extends BaseThemeService {
             }
             startWakeLock();
 
+            final OverlayTransaction transaction =
+                    new OverlayTransaction(mOverlayManager, UserHandle.USER_CURRENT);
             try {
+                awaitSessionCleanup();
+                collectParkedOverlays();
                 notifyInstallProgress(totalCount, 0, null);
-                File themeCache = setupCache(theme.packageName);
-                Context themeContext = getBaseContext().createPackageContext(theme.packageName, 0);
-                StringBuilder sb = new StringBuilder();
+                final File themeCache = getThemeCache(theme.packageName);
+                final File themeAssets =
+                        mAssetCache.getThemeDir(getPackageManager(), theme.packageName);
+                final Context themeContext =
+                        getBaseContext().createPackageContext(theme.packageName, 0);
 
-                Cipher cipher = null;
-                try {
-                    cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(theme.decryptionKey, "AES"),
-                            new IvParameterSpec(theme.ivKey));
-                } catch (NoSuchAlgorithmException|NoSuchPaddingException|InvalidAlgorithmParameterException|InvalidKeyException e) {
-                    e.printStackTrace();
-                }
+                final AssetDecryptor decryptor = getDecryptor(theme);
 
                 // handle overlays first
                 OverlayGroup overlays = info.groups.get(OverlayGroup.OVERLAYS);
                 if (overlays != null) {
-                    ThemePrefs prefs = getThemePrefs(theme.packageName + "_prefs");
+                    final ThemePrefs prefs = getThemePrefs(theme.packageName + "_prefs");
                     if (!TextUtils.isEmpty(overlays.selectedStyle)) {
                         Log.d(TAG, "selectedStyle=" + overlays.selectedStyle);
                         prefs.putString("selectedStyle", overlays.selectedStyle);
@@ -478,103 +522,84 @@ public class OmsBackendService extends BaseThemeService {
                         overlays.overlays.add(systemOverlay);
                     }
 
-                    for (Overlay overlay : overlays.overlays) {
+                    final OverlayGroup overlayGroup = overlays;
+                    final InstallSessionManager sessions =
+                            new InstallSessionManager(mPMUtils, getInstallSessions());
+                    final List<Overlay> queued = new ArrayList<>();
+                    final List<Callable<Future<Integer>>> tasks = new ArrayList<>();
+                    for (final Overlay overlay : overlays.overlays) {
                         if (!overlay.checked) continue;
-                        sb.setLength(0);
-                        sb.append("Installing overlay");
-                        sb.append(" name=" + overlay.overlayName);
-                        notifyInstallProgress(totalCount, ++index, overlay.overlayName);
-
-                        // check if installed and latest
-                        sb.append(", package=" + overlay.overlayPackage);
-                        sb.append(", newVersion=" + theme.themeVersion);
-                        try {
-                            ApplicationInfo aInfo = getPackageManager().getApplicationInfo(
-                                    overlay.overlayPackage, PackageManager.GET_META_DATA);
-                            PackageInfo appInfo = getPackageManager().getPackageInfo(
-                                    overlay.targetPackage, 0);
-                            if (aInfo.metaData != null) {
-                                int overlayVersion =
-                                        aInfo.metaData.getInt("overlay_version", -1);
-                                sb.append(", installedVersion=" + overlayVersion);
-                                int appVersion =
-                                        aInfo.metaData.getInt("app_version", -1);
-                                if (overlayVersion == theme.themeVersionCode
-                                        && appVersion == appInfo.versionCode
-                                        && !checkStyles(overlay, prefs)) {
-                                    Log.d(TAG, sb.toString());
-                                    Log.d(TAG, "Skipped");
-                                    continue;
+                        queued.add(overlay);
+                        tasks.add(new Callable<Future<Integer>>() {
+                            @Override
+                            public Future<Integer> call() throws Exception {
+                                final OverlayApk apk = buildOverlay(theme, themeContext,
+                                        themeCache, themeAssets, overlayGroup, overlay, prefs,
+                                        decryptor);
+                                if (apk == OverlayApk.INSTALLED) {
+                                    // up to date, possibly parked, only needs enabling
+                                    return CompletableFuture.completedFuture(
+                                            PackageInstaller.STATUS_SUCCESS);
                                 }
+                                return apk != null ? sessions.install(apk,
+                                        theme.packageName + "." + overlay.targetPackage) : null;
                             }
-                        } catch (PackageManager.NameNotFoundException e) {
-                            sb.append(", installedVersion=null");
-                        }
+                        });
+                    }
 
-                        File overlayFolder = new File(themeCache, overlay.targetPackage);
-                        if (overlayFolder.exists()) {
-                            deleteContents(overlayFolder);
-                        }
-                        try {
-                            AssetUtils.copyAssetFolder(themeContext.getAssets(), "overlays/"
-                                            + overlay.targetPackage + "/res",
-                                    overlayFolder.getAbsolutePath() + "/res", cipher);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        try {
-                            if (!TextUtils.isEmpty(overlays.selectedStyle)) {
-                                AssetUtils.copyAssetFolder(themeContext.getAssets(), "overlays/"
-                                                + overlay.targetPackage + "/" + overlays.selectedStyle,
-                                        overlayFolder.getAbsolutePath() + "/res", cipher);
+                    // overlays are built and their sessions committed up to buildAhead
+                    // overlays ahead, they are enabled in list order
+                    final int buildAhead = getBuildAhead();
+                    final List<Future<Future<Integer>>> builds = new ArrayList<>();
+                    long waited = 0;
+                    long installed = 0;
+                    final long start = SystemClock.elapsedRealtime();
+                    try {
+                        for (int i = 0; i < queued.size(); i++) {
+                            while (builds.size() < tasks.size()
+                                    && builds.size() <= i + buildAhead) {
+                                builds.add(mBuildExecutor.submit(tasks.get(builds.size())));
                             }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                        // handle type 2 overlay if non-default selected
-                        OverlayFlavor type2 = overlay.flavors.get("type2");
-                        if (type2 != null) {
+                            Overlay overlay = queued.get(i);
+                            notifyInstallProgress(totalCount, ++index, overlay.overlayName);
+                            Future<Integer> install = null;
+                            long time = SystemClock.elapsedRealtime();
                             try {
-                                sb.append(", type2=" + type2.selected);
-                                AssetUtils.copyAssetFolder(themeContext.getAssets(), "overlays/"
-                                                + overlay.targetPackage + "/" + type2.selected,
-                                        overlayFolder.getAbsolutePath() + "/res", cipher);
-                                    prefs.putTypeSelection(overlay.targetPackage, "type2", type2.selected);
-                            } catch (IOException e) {
-                                e.printStackTrace();
+                                install = builds.get(i).get();
+                            } catch (ExecutionException e) {
+                                Log.e(TAG, "Failed to build overlay - " + overlay.overlayPackage,
+                                        e.getCause());
                             }
-                        } else {
-                            sb.append(", type2=null");
-                        }
-
-                        Log.d(TAG, sb.toString());
-                        sb.setLength(0);
-                        sb.append("Available flavors:");
-                        for (String flavor : overlay.flavors.keySet()) {
-                            sb.append(" " + flavor);
+                            waited += SystemClock.elapsedRealtime() - time;
+                            if (install == null) {
+                                continue;
+                            }
+                            time = SystemClock.elapsedRealtime();
+                            final String packageName =
+                                    theme.packageName + "." + overlay.targetPackage;
+                            if (PackageManagerUtils.await(install,
+                                    PackageManagerUtils.COMMIT_TIMEOUT_MS)
+                                    == PackageInstaller.STATUS_SUCCESS) {
+                                Log.d(TAG, "Successfully installed overlay - " + packageName);
+                                enableOverlay(packageName, transaction);
+                            }
+                            installed += SystemClock.elapsedRealtime() - time;
+                            mReboot = true;
                         }
-                        Log.d(TAG, sb.toString());
-                        // handle type1 last
-                        handleExtractType1Flavor(
-                                themeContext, overlay, "type1a", overlayFolder, prefs, cipher);
-                        handleExtractType1Flavor(
-                                themeContext, overlay, "type1b", overlayFolder, prefs, cipher);
-                        handleExtractType1Flavor(
-                                themeContext, overlay, "type1c", overlayFolder, prefs, cipher);
-
-                        PackageInfo appInfo =
-                                getPackageManager().getPackageInfo(overlay.targetPackage, 0);
-                        generateManifest(theme, overlay,
-                                overlayFolder.getAbsolutePath(), appInfo.versionCode);
-                        if (!compileOverlay(theme, overlay, overlayFolder.getAbsolutePath())) {
-                            continue;
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Interrupted while installing overlays");
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        for (Future<Future<Integer>> build : builds) {
+                            if (!build.cancel(true) && build.isDone()) {
+                                cancelInstall(build);
+                            }
                         }
-                        installAndEnable(getCacheDir().getAbsolutePath() + "/" + theme.packageName +
-                                "/overlays/" + theme.packageName + "." + overlay.targetPackage +
-                                ".apk", theme.packageName + "." + overlay.targetPackage);
-                        mReboot = true;
                     }
+                    Log.d(TAG, "Overlays: count=" + queued.size() + " buildAhead=" + buildAhead
+                            + " total=" + (SystemClock.elapsedRealtime() - start)
+                            + "ms waitingForBuilds=" + waited + "ms installing=" + installed
+                            + "ms " + sessions.getStats());
                 }
 
                 // now for the bootanimation
@@ -597,12 +622,18 @@ public class OmsBackendService extends BaseThemeService {
                             }
 
                             // apply bootanimation
+                            extractBootanimation(theme, themeContext, themeAssets, overlay, true);
                             File bootAnimCache = new File(overlay.tag);
                             if (bootAnimCache.exists()) {
-                                bootAnimCache.renameTo(bootanimBinary);
+                                // keep the cached copy around for the next time
+                                try {
+                                    FileUtils.copyFile(bootAnimCache, bootanimBinary);
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                }
                             } else {
                                 parseBootanimation(themeContext, overlay.overlayName,
-                                        bootanimBinary, cipher);
+                                        bootanimBinary, decryptor);
                             }
                             // chmod 644
                             try {
@@ -646,11 +677,7 @@ public class OmsBackendService extends BaseThemeService {
                                 Log.e(TAG, "Unable to create dir " + fontPath.getPath());
                             }
 
-                            File fontCache = new File(overlay.tag);
-                            if (!fontCache.exists()
-                                    || (fontCache.list() != null && fontCache.list().length == 0)) {
-                                createFontCache(themeContext, overlay, themeCache);
-                            }
+                            extractFont(themeContext, themeAssets, overlay, true);
                             try {
                                 FileUtils.copyDirectory(new File(overlay.tag),
                                         new File(THEME_FONT_PATH));
@@ -682,20 +709,30 @@ public class OmsBackendService extends BaseThemeService {
                     for (Overlay overlay : overlays.overlays) {
                         if (!overlay.checked) continue;
 
-                        copyAndSetSounds(themeContext, themeCache, overlay);
+                        extractSounds(themeContext, themeAssets, overlay, true);
+                        copyAndSetSounds(overlay);
                     }
                 }
 
-                mOverlayManager.refresh(UserHandle.USER_CURRENT);
+                // enables everything installed above and refreshes once
+                transaction.commit();
                 sendFinishedBroadcast();
                 notifyInstallComplete();
                 // Housekeeping: cleanup cache
-                deleteContents(themeCache);
-                new File(getAapt()).delete();
+                cleanBuildCache(themeCache);
+                Log.d(TAG, "Cache: " + mCacheManager.getStats());
+                Log.d(TAG, "Assets: " + AssetDecryptor.getStats());
+                Log.d(TAG, "Compiler: " + mValuesCompiler.getStats() + ", "
+                        + mProcessRunner.getStats());
+                Log.d(TAG, "Install: " + mOverlayWaiter.getStats());
                 return true;
             } catch (PackageManager.NameNotFoundException e) {
                 e.printStackTrace();
             } finally {
+                // a failure after some overlays were installed still enables those
+                if (!transaction.isEmpty()) {
+                    transaction.commit();
+                }
                 stopWakeLock();
             }
             return false;
@@ -724,6 +761,7 @@ public class OmsBackendService extends BaseThemeService {
             }
             startWakeLock();
             try {
+                collectParkedOverlays();
                 notifyUninstallProgress(overlays.size(), 0, null);
 
                 Map<String, List<OverlayInfo>> overlayInfos = new HashMap<>();
@@ -733,6 +771,9 @@ public class OmsBackendService extends BaseThemeService {
                     e.printStackTrace();
                 }
 
+                final OverlayTransaction transaction =
+                        new OverlayTransaction(mOverlayManager, UserHandle.USER_CURRENT);
+                final List<OverlayInfo> uninstall = new ArrayList<>();
                 final StringBuilder sb = new StringBuilder();
                 for (Overlay overlay : overlays) {
                     sb.setLength(0);
@@ -782,13 +823,8 @@ public class OmsBackendService extends BaseThemeService {
                             if (oi.packageName.equals(overlay.overlayPackage)) {
                                 notifyUninstallProgress(overlays.size(), overlays.indexOf(overlay),
                                         overlay.overlayName);
-                                mOverlayManager.setEnabled(overlay.overlayPackage,
-                                        false, UserHandle.USER_CURRENT, false);
-                                if (mPMUtils.uninstallPackage(overlay.overlayPackage)) {
-                                    Log.d(TAG, "Complete");
-                                } else {
-                                    Log.e(TAG, "Failed");
-                                }
+                                transaction.setEnabled(overlay.overlayPackage, false);
+                                uninstall.add(oi);
                                 break;
                             }
                             Log.e(TAG, "No package name match found for " + overlay.overlayPackage);
@@ -798,6 +834,19 @@ public class OmsBackendService extends BaseThemeService {
                                 + getTargetPackage(overlay.targetPackage));
                     }
                 }
+                // disable everything in one pass before the packages go away
+                transaction.commit();
+                final boolean park = isParkingEnabled();
+                for (OverlayInfo oi : uninstall) {
+                    final String packageName = oi.packageName;
+                    if (park && parkOverlay(oi)) {
+                        Log.d(TAG, "Parked " + packageName);
+                    } else if (mPMUtils.uninstallPackage(packageName)) {
+                        Log.d(TAG, "Uninstalled " + packageName);
+                    } else {
+                        Log.e(TAG, "Failed to uninstall " + packageName);
+                    }
+                }
                 sendFinishedBroadcast();
                 notifyUninstallComplete();
                 return true;
@@ -817,7 +866,148 @@ public class OmsBackendService extends BaseThemeService {
         }
     }
 
-    private void generateManifest(Theme theme, Overlay overlay, String path, int appVersion) {
+    /**
+     * Extracts, compiles and signs an overlay. Runs on the build pool, so it must not touch
+     * state shared between overlays.
+     *
+     * @return the signed overlay, {@link OverlayApk#INSTALLED} if the installed one is up to
+     *         date, or null if it failed to build
+     */
+    private OverlayApk buildOverlay(Theme theme, Context themeContext, File themeCache,
+            File themeAssets, OverlayGroup overlays, Overlay overlay, ThemePrefs prefs,
+            AssetDecryptor decryptor) throws PackageManager.NameNotFoundException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Installing overlay");
+        sb.append(" name=" + overlay.overlayName);
+
+        // check if installed and latest
+        sb.append(", package=" + overlay.overlayPackage);
+        sb.append(", newVersion=" + theme.themeVersion);
+        String installedHash = null;
+        try {
+            ApplicationInfo aInfo = getPackageManager().getApplicationInfo(
+                    overlay.overlayPackage, PackageManager.GET_META_DATA);
+            PackageInfo appInfo = getPackageManager().getPackageInfo(
+                    overlay.targetPackage, 0);
+            if (aInfo.metaData != null) {
+                installedHash = aInfo.metaData.getString(OverlayArtifactCache.META_INPUT_HASH);
+                // kept or reused builds do not carry the current theme version
+                int overlayVersion = mOverlayVersions.getThemeVersionCode(
+                        overlay.overlayPackage, installedHash,
+                        aInfo.metaData.getInt("overlay_version", -1));
+                sb.append(", installedVersion=" + overlayVersion);
+                int appVersion =
+                        aInfo.metaData.getInt("app_version", -1);
+                if (overlayVersion == theme.themeVersionCode
+                        && appVersion == appInfo.versionCode
+                        && !checkStyles(overlay, prefs)) {
+                    Log.d(TAG, sb.toString());
+                    Log.d(TAG, "Skipped");
+                    return OverlayApk.INSTALLED;
+                }
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            sb.append(", installedVersion=null");
+        }
+
+        File overlayFolder = new File(themeCache, overlay.targetPackage);
+        if (overlayFolder.exists()) {
+            deleteContents(overlayFolder);
+        }
+        try {
+            copyAssetFolder(themeContext, themeAssets, "overlays/"
+                            + overlay.targetPackage + "/res",
+                    new File(overlayFolder, "res"), decryptor);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            if (!TextUtils.isEmpty(overlays.selectedStyle)) {
+                copyAssetFolder(themeContext, themeAssets, "overlays/"
+                                + overlay.targetPackage + "/" + overlays.selectedStyle,
+                        new File(overlayFolder, "res"), decryptor);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // handle type 2 overlay if non-default selected
+        OverlayFlavor type2 = overlay.flavors.get("type2");
+        if (type2 != null) {
+            try {
+                sb.append(", type2=" + type2.selected);
+                copyAssetFolder(themeContext, themeAssets, "overlays/"
+                                + overlay.targetPackage + "/" + type2.selected,
+                        new File(overlayFolder, "res"), decryptor);
+                    prefs.putTypeSelection(overlay.targetPackage, "type2", type2.selected);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            sb.append(", type2=null");
+        }
+
+        Log.d(TAG, sb.toString());
+        sb.setLength(0);
+        sb.append("Available flavors:");
+        for (String flavor : overlay.flavors.keySet()) {
+            sb.append(" " + flavor);
+        }
+        Log.d(TAG, sb.toString());
+        // handle type1 last
+        handleExtractType1Flavor(
+                themeContext, themeAssets, overlay, "type1a", overlayFolder, prefs,
+                decryptor);
+        handleExtractType1Flavor(
+                themeContext, themeAssets, overlay, "type1b", overlayFolder, prefs,
+                decryptor);
+        handleExtractType1Flavor(
+                themeContext, themeAssets, overlay, "type1c", overlayFolder, prefs,
+                decryptor);
+
+        PackageInfo appInfo =
+                getPackageManager().getPackageInfo(overlay.targetPackage, 0);
+        String overlayPackage = theme.packageName + "." + overlay.targetPackage;
+        String inputHash = null;
+        try {
+            inputHash = OverlayArtifactCache.hashInputs(new File(overlayFolder, "res"),
+                    overlayPackage, getTargetPackage(overlay.targetPackage), theme.packageName,
+                    appInfo.versionCode);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (inputHash != null && inputHash.equals(installedHash)) {
+            Log.d(TAG, "Inputs unchanged, skipped - " + overlayPackage);
+            recordThemeVersion(theme, overlayPackage, inputHash);
+            return OverlayApk.INSTALLED;
+        }
+
+        File artifact = inputHash != null
+                ? mArtifactCache.lookup(theme.packageName, inputHash) : null;
+        if (artifact != null) {
+            // installed straight from the cache, the package manager copies it anyway
+            Log.d(TAG, "Reusing previous build - " + overlayPackage);
+            recordThemeVersion(theme, overlayPackage, inputHash);
+            return new OverlayApk(artifact);
+        }
+
+        generateManifest(theme, overlay,
+                overlayFolder.getAbsolutePath(), appInfo.versionCode, inputHash);
+        return compileOverlay(theme, overlay, overlayFolder.getAbsolutePath(), inputHash);
+    }
+
+    /**
+     * The version meta-data is not part of the input hash, so a kept or reused build still
+     * names the theme version it was built for.
+     */
+    private void recordThemeVersion(Theme theme, String overlayPackage, String inputHash) {
+        mOverlayVersions.record(overlayPackage, inputHash, theme.themeVersionCode,
+                theme.themeVersion);
+        mOverlayMetadata.onPackageChanged(overlayPackage);
+    }
+
+    private void generateManifest(Theme theme, Overlay overlay, String path, int appVersion,
+            String inputHash) {
         String targetPackage = getTargetPackage(overlay.targetPackage);
         StringBuilder manifest = new StringBuilder();
         manifest.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
@@ -836,6 +1026,10 @@ public class OmsBackendService extends BaseThemeService {
                 + overlay.targetPackage + "\"/>\n");
         manifest.append("<meta-data android:name=\"app_version\" android:value=\""
                 + appVersion + "\"/>\n");
+        if (inputHash != null) {
+            manifest.append("<meta-data android:name=\"" + OverlayArtifactCache.META_INPUT_HASH
+                    + "\" android:value=\"" + inputHash + "\"/>\n");
+        }
         manifest.append("</application>\n");
         manifest.append("</manifest>");
         try {
@@ -857,7 +1051,28 @@ public class OmsBackendService extends BaseThemeService {
         return changed;
     }
 
-    private boolean compileOverlay(Theme theme, Overlay overlay, String overlayPath) {
+    /**
+     * Compiles and signs an overlay. Values-only overlays are built in memory and only
+     * written to disk for the artifact cache.
+     *
+     * @return the signed overlay, or null on failure
+     */
+    private OverlayApk compileOverlay(Theme theme, Overlay overlay, String overlayPath,
+            String inputHash) {
+        byte[] apk = mValuesCompiler.compile(overlayPath);
+        if (apk != null) {
+            try {
+                apk = mSigner.sign(apk);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (inputHash != null) {
+                mArtifactCache.publish(theme.packageName, inputHash, apk);
+            }
+            return new OverlayApk(apk);
+        }
+
         File overlayFolder = new File(getCacheDir() + "/" + theme.packageName + "/overlays");
         if (!overlayFolder.exists()) {
             overlayFolder.mkdirs();
@@ -884,43 +1099,38 @@ public class OmsBackendService extends BaseThemeService {
                     PackageManager.GET_META_DATA);
         } catch (PackageManager.NameNotFoundException e) {
             Log.e(TAG,"Target package " + getTargetPackage(overlay.targetPackage) + " not found");
-            return false;
+            return null;
         }
 
         Log.d(TAG,"compileOverlay: info.sourceDir  = " + info.sourceDir);
 
+        if (!mCompiler.compile(overlayPath, info.sourceDir, unsignedOverlay)) {
+            return null;
+        }
+
         try {
-            Process nativeApp = Runtime.getRuntime().exec(new String[]{
-                    getAapt(), "p",
-                    "-M", overlayPath + "/AndroidManifest.xml",
-                    "-S", overlayPath + "/res",
-                    "-I", "/system/framework/framework-res.apk",
-                    info != null ? "-I" : "", info != null ? info.sourceDir : "",
-                    "-F", unsignedOverlay.getAbsolutePath()
-            });
-            nativeApp.waitFor();
-            int exitCode = nativeApp.exitValue();
-            String error = IOUtils.toString(nativeApp.getErrorStream(), Charset.defaultCharset());
-            if (exitCode != 0 || !TextUtils.isEmpty(error)) {
-                Log.e(TAG, "aapt: exitCode:" + exitCode + " error: " + error);
-                return false;
-            }
             // sign
             if (unsignedOverlay.exists()) {
-                ZipSigner zipSigner = new ZipSigner();
-                zipSigner.setKeymode("testkey");
-                zipSigner.signZip(unsignedOverlay.getAbsolutePath(),
-                    signedOverlay.getAbsolutePath());
+                mSigner.sign(unsignedOverlay);
+                if (inputHash != null) {
+                    return new OverlayApk(mArtifactCache.publish(theme.packageName, inputHash,
+                            unsignedOverlay));
+                }
+                if (!unsignedOverlay.renameTo(signedOverlay)) {
+                    Log.e(TAG, "Failed to create overlay - unable to rename "
+                            + unsignedOverlay.getAbsolutePath());
+                    return null;
+                }
             } else {
                 Log.e(TAG, "Failed to create overlay - unable to compile "
                         + unsignedOverlay.getAbsolutePath());
-                return false;
+                return null;
             }
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
+            return null;
         }
-        return true;
+        return new OverlayApk(signedOverlay);
     }
 
     private void updateFonts() {
@@ -932,13 +1142,10 @@ public class OmsBackendService extends BaseThemeService {
                 Settings.System.FONT_SCALE, fontSize + 0.0001f, UserHandle.USER_CURRENT);
     }
 
-    private void createFontCache(Context themeContext, Overlay overlay, File themeCache) {
-        File fontPath = new File(themeCache, "fonts/" + overlay.overlayName.replace(".zip", ""));
-        if (!fontPath.exists() && !fontPath.mkdirs()) {
-            Log.e(TAG, "Unable to create directory " + fontPath.getPath());
-        }
+    private void createFontCache(Context themeContext, String font, File fontPath)
+            throws IOException {
         try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(
-                themeContext.getAssets().open("fonts/" + overlay.overlayName)))) {
+                themeContext.getAssets().open("fonts/" + font)))) {
             ZipEntry entry;
             int count;
             byte[] buf = new byte[4096];
@@ -953,71 +1160,93 @@ public class OmsBackendService extends BaseThemeService {
             }
             writeFontsXML(fontPath.getAbsolutePath());
             Shell.chmodDir(fontPath, 777);
-            overlay.tag = fontPath.getAbsolutePath();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
-    @SuppressLint("SetWorldReadable")
-    private String getAapt() {
-        String path = "/data/system/theme/bin";
-        File aaptDir = new File(path);
-        File aaptFile = new File(aaptDir, "aapt");
-        if (aaptFile.exists()) {
-        } else {
-            try {
-                copyInputStreamToFile(getAssets().open("aapt"), aaptFile);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
+    /**
+     * Waits for the overlay manager to know the installed overlay and queues enabling it.
+     */
+    private void enableOverlay(String packageName, OverlayTransaction transaction) {
+        try {
+            if (mOverlayWaiter.await(packageName, OVERLAY_READY_TIMEOUT_MS) == null) {
+                Log.e(TAG, "Failed to enable overlay - " + packageName + " is not known to"
+                        + " the overlay manager");
+                return;
             }
+            transaction.setEnabled(packageName, true);
+            mParkedOverlays.unpark(packageName);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for overlay - " + packageName);
+            Thread.currentThread().interrupt();
         }
-        // chmod 700
+    }
+
+    /**
+     * Waits for the stale sessions of a previous process to be abandoned, before this run
+     * creates its own.
+     */
+    private void awaitSessionCleanup() {
         try {
-            Shell.chmod(aaptDir.getAbsolutePath(), 700);
-            Shell.chmod(aaptFile.getAbsolutePath(), 700);
-        } catch (Exception e) {
-            e.printStackTrace();
+            mSessionCleanup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to abandon stale sessions", e.getCause());
         }
-        return aaptFile.getAbsolutePath();
     }
 
-    private void installAndEnable(String apk, String packageName) {
+    /**
+     * Records a disabled overlay as parked, so switching back to its theme only enables it.
+     *
+     * @return false if it can not be parked and should be uninstalled
+     */
+    private boolean parkOverlay(OverlayInfo oi) {
+        String themePackage = null;
         try {
-            if (mPMUtils.installPackage(apk)) {
-                Log.d(TAG, "Successfully installed overlay - " + packageName);
-                OverlayInfo info = null;
-                while (info == null) {
-                    try {
-                        info = mOverlayManager.getOverlayInfo(packageName, UserHandle.USER_CURRENT);
-                        Thread.sleep(500);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-                try {
-                    if (!mOverlayManager.setEnabled(packageName,
-                            true, UserHandle.USER_CURRENT, false)) {
-                        Log.e(TAG, "Failed to enable overlay - " + packageName);
-                    } else {
-                        Log.d(TAG, "Successfully enabled overlay - " + packageName);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception while enabling overlay - " + packageName);
-                    e.printStackTrace();
-                }
+            final ApplicationInfo aInfo = getPackageManager().getApplicationInfo(
+                    oi.packageName, PackageManager.GET_META_DATA);
+            if (aInfo.metaData != null) {
+                themePackage = aInfo.metaData.getString("theme_package");
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+        return mParkedOverlays.park(getPackageManager(), oi.packageName, themePackage,
+                oi.targetPackageName);
+    }
+
+    /**
+     * Uninstalls the parked overlays whose theme or target changed since, or all of them if
+     * parking was turned off.
+     */
+    private void collectParkedOverlays() {
+        final List<String> stale =
+                mParkedOverlays.collectStale(getPackageManager(), !isParkingEnabled());
+        for (String packageName : stale) {
+            if (mPMUtils.uninstallPackage(packageName)) {
+                Log.d(TAG, "Uninstalled parked overlay " + packageName);
             } else {
-                Log.e(TAG, "Failed to install package " + apk);
+                Log.e(TAG, "Failed to uninstall parked overlay " + packageName);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception while installing overlay - " + packageName);
-            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Cancels the session of a finished build that will not be waited for.
+     */
+    private static void cancelInstall(Future<Future<Integer>> build) {
+        try {
+            final Future<Integer> install = build.get();
+            if (install != null) {
+                install.cancel(true);
+            }
+        } catch (InterruptedException|ExecutionException|CancellationException e) {
+            // nothing was submitted
         }
     }
 
     private OverlayGroup getOverlays(Context themeContext,
-            String[] packages, ThemePrefs prefs, Cipher cipher) {
+            String[] packages, ThemePrefs prefs, AssetDecryptor decryptor) {
         OverlayGroup group = new OverlayGroup();
 
         Map<String, List<OverlayInfo>> overlays = new HashMap<>();
@@ -1026,6 +1255,9 @@ public class OmsBackendService extends BaseThemeService {
         } catch (RemoteException e) {
             e.printStackTrace();
         }
+        mOverlayMetadata.prefetch(overlays);
+        Map<String, String> flavorNames =
+                FlavorNameTable.getInstance(this).getNames(themeContext, decryptor);
         group.selectedStyle = prefs.getString("selectedStyle", "");
 
         for (String p : packages) {
@@ -1055,20 +1287,17 @@ public class OmsBackendService extends BaseThemeService {
                             overlay.isOverlayEnabled =
                                     (oi.state == OverlayInfo.STATE_APPROVED_ENABLED);
 
-                            try {
-                                ApplicationInfo oai = getPackageManager()
-                                        .getApplicationInfo(overlay.overlayPackage,
-                                                PackageManager.GET_META_DATA);
-                                overlay.overlayVersion = oai.metaData.getInt("overlay_version");
-                                overlay.themeVersion = oai.metaData.getString("theme_version", "");
-                            } catch (PackageManager.NameNotFoundException ex) {
-                                // ignore
+                            OverlayMetadataCache.Entry metadata =
+                                    mOverlayMetadata.get(oi.packageName, oi.targetPackageName);
+                            if (metadata != null) {
+                                overlay.overlayVersion = metadata.overlayVersion;
+                                overlay.themeVersion = metadata.themeVersion;
                             }
                             break;
                         }
                     }
                 }
-                loadOverlayFlavors(themeContext, overlay, cipher);
+                loadOverlayFlavors(themeContext, overlay, flavorNames);
                 for (OverlayFlavor flavor : overlay.flavors.values()) {
                     String sel = prefs.getTypeSelection(overlay.targetPackage, flavor.key);
                     if (!TextUtils.isEmpty(sel)) {
@@ -1078,11 +1307,290 @@ public class OmsBackendService extends BaseThemeService {
                 group.overlays.add(overlay);
             }
         }
-        getThemeStyles(themeContext, group, cipher);
+        getThemeStyles(themeContext, group, flavorNames);
         group.sort();
         return group;
     }
 
+    private OverlayGroup getFonts(Context themeContext, File themeAssets) throws IOException {
+        String[] fonts = ThemeAssetIndex.get(themeContext).list("fonts");
+        if (fonts.length == 0) {
+            return null;
+        }
+        OverlayGroup fontGroup = new OverlayGroup();
+        for (String font : fonts) {
+            Overlay fon = new Overlay(font, OverlayGroup.FONTS, true);
+            extractFont(themeContext, themeAssets, fon, false);
+            fontGroup.overlays.add(fon);
+        }
+        return fontGroup;
+    }
+
+    private OverlayGroup getSounds(Context themeContext, File themeAssets) throws IOException {
+        String[] sounds = ThemeAssetIndex.get(themeContext).list("audio");
+        if (sounds.length == 0) {
+            return null;
+        }
+        OverlayGroup soundGroup = new OverlayGroup();
+        for (String sound : sounds) {
+            String name = sound.substring(0, sound.lastIndexOf("."));
+            Overlay so = new Overlay(name, OverlayGroup.SOUNDS, true);
+            so.overlayPackage = sound;
+            extractSounds(themeContext, themeAssets, so, false);
+            soundGroup.overlays.add(so);
+        }
+        return soundGroup;
+    }
+
+    private OverlayGroup getBootanimations(Theme theme, Context themeContext, File themeAssets)
+            throws IOException {
+        String[] bootanis = ThemeAssetIndex.get(themeContext).list("bootanimation");
+        if (bootanis.length == 0) {
+            return null;
+        }
+        // the preview is read from the cache
+        try {
+            Shell.chmod(themeAssets.getAbsolutePath(), 744);
+            Shell.chmod(themeAssets.getParent(), 744);
+            Shell.chmod(themeAssets.getParentFile().getParent(), 744);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        OverlayGroup bootanimations = new OverlayGroup();
+        for (String bootani : bootanis) {
+            String bootName = bootani.substring(0, bootani.lastIndexOf("."));
+            Overlay bootanimation = new Overlay(bootName,
+                    OverlayGroup.BOOTANIMATIONS, true);
+            extractBootanimation(theme, themeContext, themeAssets, bootanimation, false);
+            bootanimations.overlays.add(bootanimation);
+        }
+        return bootanimations;
+    }
+
+    private void extractFont(final Context themeContext, File themeAssets, final Overlay font,
+            boolean wait) {
+        File entry = mAssetCache.getEntry(themeAssets, "fonts/" + font.overlayName);
+        font.tag = entry.getAbsolutePath();
+        extractAsset(entry, new ThemeAssetCache.Extractor() {
+            @Override
+            public void extract(File target) throws IOException {
+                createFontCache(themeContext, font.overlayName, target);
+            }
+        }, wait);
+    }
+
+    private void extractSounds(final Context themeContext, File themeAssets, final Overlay sound,
+            boolean wait) {
+        File entry = mAssetCache.getEntry(themeAssets, "audio/" + sound.overlayPackage);
+        sound.tag = entry.getAbsolutePath();
+        extractAsset(entry, new ThemeAssetCache.Extractor() {
+            @Override
+            public void extract(File target) throws IOException {
+                cacheSounds(themeContext, sound.overlayPackage, target);
+            }
+        }, wait);
+    }
+
+    private void extractBootanimation(final Theme theme, final Context themeContext,
+            File themeAssets, final Overlay bootanimation, boolean wait) {
+        final String fileName = bootanimation.overlayName + ".zip";
+        File entry = mAssetCache.getEntry(themeAssets, "bootanimation/" + fileName);
+        bootanimation.tag = new File(entry, fileName).getAbsolutePath();
+        extractAsset(entry, new ThemeAssetCache.Extractor() {
+            @Override
+            public void extract(File target) throws IOException {
+                File bootanimFile = new File(target, fileName);
+                if (!parseBootanimation(themeContext, bootanimation.overlayName, bootanimFile,
+                        getDecryptor(theme))) {
+                    throw new IOException("Unable to parse bootanimation " + fileName);
+                }
+                Shell.chmod(bootanimFile.getAbsolutePath(), 744);
+                Shell.chmod(target.getAbsolutePath(), 744);
+            }
+        }, wait);
+    }
+
+    /**
+     * Extracts a theme asset into the asset cache unless it is there already. Listing a theme
+     * only queues the extraction in the background for previews; installing waits for it, or
+     * runs it right away if it has not started yet.
+     */
+    private void extractAsset(final File entry, final ThemeAssetCache.Extractor extractor,
+            boolean wait) {
+        if (mAssetCache.lookup(entry)) {
+            return;
+        }
+        final String key = entry.getAbsolutePath();
+        FutureTask<Void> task;
+        boolean submit = false;
+        synchronized (mExtractions) {
+            task = mExtractions.get(key);
+            if (task == null || task.isCancelled()) {
+                task = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAssetCache.publish(entry, extractor);
+                    }
+                }, null) {
+                    @Override
+                    protected void done() {
+                        synchronized (mExtractions) {
+                            if (mExtractions.get(key) == this) {
+                                mExtractions.remove(key);
+                            }
+                        }
+                    }
+                };
+                mExtractions.put(key, task);
+                submit = !wait;
+            }
+        }
+        if (submit) {
+            mExtractExecutor.execute(task);
+            return;
+        }
+        if (wait) {
+            // no-op if it is already running or done
+            task.run();
+            try {
+                task.get();
+            } catch (InterruptedException|ExecutionException|CancellationException e) {
+                Log.e(TAG, "Extraction failed - " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Drops pending preview extractions that do not belong to the given theme.
+     */
+    private void cancelExtractions(String packageName) {
+        final String prefix = new File(getCacheDir(), packageName).getAbsolutePath() + "/";
+        final List<FutureTask<Void>> cancel = new ArrayList<>();
+        synchronized (mExtractions) {
+            for (Map.Entry<String, FutureTask<Void>> entry : mExtractions.entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    cancel.add(entry.getValue());
+                }
+            }
+        }
+        // done() removes the cancelled tasks from mExtractions, so cancel outside the loop
+        for (FutureTask<Void> task : cancel) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Copies an asset folder of the theme to dest, decrypting it only the first time.
+     */
+    private void copyAssetFolder(final Context themeContext, File themeAssets,
+            final String assetPath, File dest, final AssetDecryptor decryptor)
+            throws IOException {
+        File entry = mAssetCache.getEntry(themeAssets, assetPath);
+        if (!mAssetCache.publish(entry, new ThemeAssetCache.Extractor() {
+            @Override
+            public void extract(File target) throws IOException {
+                copyAssetTree(themeContext, ThemeAssetIndex.get(themeContext), assetPath,
+                        target, decryptor);
+            }
+        })) {
+            throw new IOException("Unable to extract " + assetPath);
+        }
+        FileUtils.copyDirectory(entry, dest);
+    }
+
+    private void copyAssetTree(Context themeContext, ThemeAssetIndex index, String assetPath,
+            File dest, AssetDecryptor decryptor) throws IOException {
+        if (!dest.exists() && !dest.mkdirs()) {
+            throw new IOException("Unable to create directory " + dest.getPath());
+        }
+        for (String name : index.list(assetPath)) {
+            String path = assetPath + "/" + name;
+            if (index.isDirectory(path)) {
+                copyAssetTree(themeContext, index, path, new File(dest, name), decryptor);
+                continue;
+            }
+            if (name.endsWith(".enc")) {
+                // the decryptor picks the encrypted variant by itself
+                name = name.substring(0, name.lastIndexOf("."));
+                path = assetPath + "/" + name;
+            }
+            decryptor.copyAsset(themeContext.getAssets(), index, path, new File(dest, name));
+        }
+    }
+
+    /**
+     * Copies a single asset of the theme to dest, decrypting it only the first time.
+     */
+    private void copyAsset(final Context themeContext, File themeAssets,
+            final String assetPath, File dest, final AssetDecryptor decryptor)
+            throws IOException {
+        File entry = mAssetCache.getEntry(themeAssets, assetPath);
+        final String name = new File(assetPath).getName();
+        if (!mAssetCache.publish(entry, new ThemeAssetCache.Extractor() {
+            @Override
+            public void extract(File target) throws IOException {
+                decryptor.copyAsset(themeContext.getAssets(),
+                        ThemeAssetIndex.get(themeContext), assetPath, new File(target, name));
+            }
+        })) {
+            throw new IOException("Unable to extract " + assetPath);
+        }
+        FileUtils.copyFile(new File(entry, name), dest);
+    }
+
+    private OverlayGroup getWallpapers(String wallpapersXmlUri) throws Exception {
+        OverlayGroup wallpapers = new OverlayGroup();
+        URLConnection connection = new URL(wallpapersXmlUri).openConnection();
+        connection.setConnectTimeout((int) WALLPAPERS_TIMEOUT_MS);
+        connection.setReadTimeout((int) WALLPAPERS_TIMEOUT_MS);
+        try (InputStream is = connection.getInputStream()) {
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(new InputStreamReader(is));
+            Overlay wallpaper = null;
+            while (parser.getEventType() != XmlPullParser.END_DOCUMENT) {
+                if (parser.getEventType() == XmlPullParser.START_TAG) {
+                    if (parser.getName().equals("wallpaper")) {
+                        String id = parser.getAttributeValue(null, "id");
+                        wallpaper = new Overlay(id, id, true);
+                    } else if (parser.getName().equals("link")) {
+                        assert wallpaper != null;
+                        wallpaper.tag = parser.nextText();
+                    }
+                } else if (parser.getEventType() == XmlPullParser.END_TAG) {
+                    if (parser.getName().equals("wallpaper")) {
+                        assert wallpaper != null;
+                        wallpapers.overlays.add(wallpaper);
+                    }
+                }
+                parser.next();
+            }
+        }
+        return wallpapers;
+    }
+
+    private int getInstallSessions() {
+        return Math.max(1, SystemProperties.getInt(PROP_INSTALL_SESSIONS,
+                DEFAULT_INSTALL_SESSIONS));
+    }
+
+    private boolean isParkingEnabled() {
+        return SystemProperties.getBoolean(PROP_PARK_OVERLAYS, true);
+    }
+
+    private int getBuildAhead() {
+        return Math.max(1, SystemProperties.getInt(PROP_BUILD_AHEAD, DEFAULT_BUILD_AHEAD));
+    }
+
+    private long getSectionTimeout(String section) {
+        return OverlayGroup.WALLPAPERS.equals(section)
+                ? WALLPAPERS_TIMEOUT_MS : CONTENT_SECTION_TIMEOUT_MS;
+    }
+
+    private AssetDecryptor getDecryptor(Theme theme) {
+        return AssetDecryptor.get(theme.decryptionKey, theme.ivKey);
+    }
+
     private String getTargetPackage(String targetPackage) {
         if (mSystemUIPackages.containsKey(targetPackage)) {
             return "com.android.systemui";
@@ -1090,10 +1598,11 @@ public class OmsBackendService extends BaseThemeService {
         return targetPackage;
     }
 
-    private void loadOverlayFlavors(Context themeContext, Overlay overlay, Cipher cipher) {
+    private void loadOverlayFlavors(Context themeContext, Overlay overlay,
+            Map<String, String> flavorNames) {
         String[] types = null;
         try {
-            types = themeContext.getAssets().list("overlays/" + overlay.targetPackage);
+            types = ThemeAssetIndex.get(themeContext).list("overlays/" + overlay.targetPackage);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1112,13 +1621,10 @@ public class OmsBackendService extends BaseThemeService {
                         if (!isValidFlavor(flavor)) {
                             continue;
                         }
-                        try {
-                            String flavorName = IOUtils.toString(AssetUtils.getAsset(
-                              themeContext.getAssets(), "overlays/" + overlay.targetPackage + "/"
-                              + flavor, cipher), Charset.defaultCharset());
+                        String flavorName = flavorNames.get(
+                                "overlays/" + overlay.targetPackage + "/" + flavor);
+                        if (flavorName != null) {
                             flavorMap.put(flavor, new OverlayFlavor(flavor, flavorName));
-                        } catch (IOException e) {
-                            // ignore
                         }
                     } else {
                         String flavorName = flavor.substring(flavor.indexOf("_") + 1);
@@ -1150,12 +1656,16 @@ public class OmsBackendService extends BaseThemeService {
     }
 
 
-    private void getThemeStyles(Context themeContext, OverlayGroup group, Cipher cipher) {
+    private void getThemeStyles(Context themeContext, OverlayGroup group,
+            Map<String, String> flavorNames) {
         String[] types = null;
         try {
-            types = themeContext.getAssets().list("overlays/android");
-            String def = IOUtils.toString(AssetUtils.getAsset(themeContext.getAssets(),
-                    "overlays/android/" + "type3", cipher), Charset.defaultCharset());
+            types = ThemeAssetIndex.get(themeContext).list("overlays/android");
+        } catch (IOException e) {
+            // ignore
+        }
+        String def = flavorNames.get("overlays/android/" + "type3");
+        if (types != null && def != null) {
             boolean hasDefault = false;
             for (String type : types) {
                 if (type.equals("res")) {
@@ -1164,8 +1674,6 @@ public class OmsBackendService extends BaseThemeService {
                 }
             }
             group.styles.put((hasDefault ? "type3" : ""), def);
-        } catch (IOException e) {
-            // ignore
         }
         if (types != null) {
             for (String type : types) {
@@ -1188,36 +1696,47 @@ public class OmsBackendService extends BaseThemeService {
        return mSystemUIPackages.containsKey(pName);
     }
 
-    private File setupCache(String packageName) {
-        File cache = new File(getCacheDir(), packageName);
-        if (cache.exists()) {
-            // Always start on a clean slate
-            deleteContents(cache);
+    /**
+     * Removes the overlay build leftovers, the extracted assets are kept for later.
+     */
+    private void cleanBuildCache(File themeCache) {
+        File[] files = themeCache.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().equals(ThemeAssetCache.EXTRACTED_DIR)
+                    && !file.getName().equals(OverlayArtifactCache.ARTIFACTS_DIR)) {
+                FileUtils.deleteQuietly(file);
+            }
         }
-        if (!cache.mkdirs()) {
+    }
+
+    private File getThemeCache(String packageName) {
+        File cache = new File(getCacheDir(), packageName);
+        if (!cache.exists() && !cache.mkdirs()) {
             Log.e(TAG, "unable to create directory : "
                     + cache.getAbsolutePath());
         }
         return cache;
     }
 
-    private void handleExtractType1Flavor(Context themeContext, Overlay overlay, String typeName,
-                                          File overlayFolder, ThemePrefs prefs, Cipher cipher) {
+    private void handleExtractType1Flavor(Context themeContext, File themeAssets,
+            Overlay overlay, String typeName, File overlayFolder, ThemePrefs prefs,
+            AssetDecryptor decryptor) {
         OverlayFlavor type = overlay.flavors.get(typeName);
         if (type != null) {
             Log.d(TAG, "handleExtractType1Flavor, selected=" + type.selected);
             if (type.selected == null) return;
-            AssetManager am = themeContext.getAssets();
             try {
+                ThemeAssetIndex index = ThemeAssetIndex.get(themeContext);
                 String of = "overlays/" + overlay.targetPackage + "/res";
-                for (String n : am.list(of)) {
+                for (String n : index.list(of)) {
                     if (n.contains("values")) {
-                        for (String s : am.list(of + "/" + n)) {
+                        for (String s : index.list(of + "/" + n)) {
                             if (s.equals(type.key + ".xml")) {
-                                AssetUtils.copyAsset(am, "overlays/" + overlay.targetPackage
-                                                + "/" + type.selected,
-                                        overlayFolder.getAbsolutePath() + "/res/"
-                                                + n + "/" + type.key + ".xml", cipher);
+                                copyAsset(themeContext, themeAssets, "overlays/"
+                                                + overlay.targetPackage + "/" + type.selected,
+                                        new File(overlayFolder, "res/" + n + "/"
+                                                + type.key + ".xml"), decryptor);
                             }
                         }
                     }
@@ -1242,7 +1761,7 @@ public class OmsBackendService extends BaseThemeService {
     }
 
     private boolean parseBootanimation(Context themeContext, String bootAnimName,
-            File bootanimFile, Cipher cipher) {
+            File bootanimFile, AssetDecryptor decryptor) {
         File bootanimCacheFile = new File(bootanimFile.getParent(), "__" + bootanimFile.getName());
         if (bootanimCacheFile.exists()) {
             bootanimCacheFile.delete();
@@ -1250,8 +1769,8 @@ public class OmsBackendService extends BaseThemeService {
 
         // extract the asset first
         try {
-            AssetUtils.copyAsset(themeContext.getAssets(), "bootanimation/"
-                    + bootAnimName + ".zip", bootanimCacheFile.getAbsolutePath(), cipher);
+            decryptor.copyAsset(themeContext.getAssets(), ThemeAssetIndex.get(themeContext),
+                    "bootanimation/" + bootAnimName + ".zip", bootanimCacheFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1426,12 +1945,7 @@ public class OmsBackendService extends BaseThemeService {
         return true;
     }
 
-    private void copyAndSetSounds(Context themeContext, File themeCache, Overlay overlay) {
-        File soundPath = new File(overlay.tag);
-        if (!soundPath.exists()) {
-            cacheSounds(themeContext, themeCache, overlay);
-        }
-
+    private void copyAndSetSounds(Overlay overlay) {
         try {
             FileUtils.copyDirectory(new File(overlay.tag), new File("/data/system/theme/audio"));
         } catch (IOException e) {
@@ -1478,13 +1992,10 @@ public class OmsBackendService extends BaseThemeService {
         }
     }
 
-    private void cacheSounds(Context themeContext, File themeCache, Overlay sound) {
-        File soundPath = new File(themeCache,  "sounds/" + sound.overlayName);
-        if (!soundPath.exists() && !soundPath.mkdirs()) {
-            Log.e(TAG, "Unable to create directory " + soundPath.getPath());
-        }
+    private void cacheSounds(Context themeContext, String sound, File soundPath)
+            throws IOException {
         try (ZipInputStream zis = new ZipInputStream(
-                themeContext.getAssets().open("audio/" + sound.overlayPackage))) {
+                themeContext.getAssets().open("audio/" + sound))) {
             ZipEntry entry;
             int count;
             byte[] buf = new byte[4096];
@@ -1506,10 +2017,7 @@ public class OmsBackendService extends BaseThemeService {
                 }
                 Shell.chmod(file, 777);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        sound.tag = soundPath.getAbsolutePath();
     }
 
     private void writeFontsXML(String path) {
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.io.File;
+
+/**
+ * A signed overlay waiting to be installed, either a file or held in memory.
+ */
+public class OverlayApk {
+
+    /**
+     * Returned instead of a build when the installed overlay is up to date, it only needs to
+     * be enabled.
+     */
+    public static final OverlayApk INSTALLED = new OverlayApk((File) null);
+
+    public final File file;
+    public final byte[] data;
+
+    public OverlayApk(File file) {
+        this.file = file;
+        this.data = null;
+    }
+
+    public OverlayApk(byte[] data) {
+        this.file = null;
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        if (this == INSTALLED) {
+            return "<installed>";
+        }
+        return file != null ? file.getAbsolutePath() : "<" + data.length + " bytes in memory>";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Signed overlay APKs of previous installs, keyed by a hash of everything that went into them.
+ *
+ * Artifacts live in {@code <root>/<theme>/artifacts/<hash>.apk} and are handed to the
+ * {@link CacheManager} like extracted assets.
+ */
+public class OverlayArtifactCache {
+
+    private static final String TAG = "SlimTM-OverlayArtifactCache";
+
+    static final String ARTIFACTS_DIR = "artifacts";
+
+    // stored in the overlay manifest, the prefix keeps aapt from parsing it as a number
+    static final String META_INPUT_HASH = "input_hash";
+    private static final String HASH_PREFIX = "sha256:";
+
+    private static final File FRAMEWORK_RES = new File("/system/framework/framework-res.apk");
+
+    private final File mRoot;
+    private final CacheManager mCacheManager;
+
+    public OverlayArtifactCache(File root, CacheManager cacheManager) {
+        mRoot = root;
+        mCacheManager = cacheManager;
+    }
+
+    /**
+     * Hands the artifacts left by previous runs to the cache manager and removes unfinished
+     * ones.
+     */
+    public void restore() {
+        final File[] themes = mRoot.listFiles();
+        if (themes == null) return;
+        for (File theme : themes) {
+            final File[] artifacts = new File(theme, ARTIFACTS_DIR).listFiles();
+            if (artifacts == null) continue;
+            for (File artifact : artifacts) {
+                if (artifact.getName().startsWith(".")) {
+                    FileUtils.deleteQuietly(artifact);
+                } else {
+                    mCacheManager.restore(artifact);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the inputs of an overlay build: the merged res tree, the manifest fields that
+     * are not version meta-data, the target version and the framework it compiles against.
+     */
+    public static String hashInputs(File resDir, String overlayPackage, String targetPackage,
+            String themePackage, int targetVersionCode) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, overlayPackage);
+        update(digest, targetPackage);
+        update(digest, themePackage);
+        update(digest, String.valueOf(targetVersionCode));
+        update(digest, FRAMEWORK_RES.length() + "/" + FRAMEWORK_RES.lastModified());
+        hashTree(digest, resDir, "");
+        final byte[] hash = digest.digest();
+        final StringBuilder sb = new StringBuilder(HASH_PREFIX.length() + hash.length * 2);
+        sb.append(HASH_PREFIX);
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the artifact built from the given inputs, or null if there is none
+     */
+    public File lookup(String themePackage, String inputHash) {
+        final File artifact = getArtifact(themePackage, inputHash);
+        if (artifact.isFile()) {
+            mCacheManager.onHit(artifact);
+            return artifact;
+        }
+        return null;
+    }
+
+    /**
+     * Moves a freshly signed overlay into the cache.
+     *
+     * @return the artifact, or the given file if it could not be kept
+     */
+    public File publish(String themePackage, String inputHash, File apk) {
+        final File artifact = getArtifact(themePackage, inputHash);
+        final File dir = artifact.getParentFile();
+        if ((!dir.exists() && !dir.mkdirs()) || !apk.renameTo(artifact)) {
+            Log.e(TAG, "Unable to keep overlay artifact - " + apk.getName());
+            return apk;
+        }
+        mCacheManager.onCreated(artifact);
+        return artifact;
+    }
+
+    /**
+     * Keeps a copy of a freshly signed overlay that was built in memory.
+     */
+    public void publish(String themePackage, String inputHash, byte[] apk) {
+        final File artifact = getArtifact(themePackage, inputHash);
+        final File dir = artifact.getParentFile();
+        final File tmp = new File(dir, ".tmp-" + UUID.randomUUID());
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("unable to create directory : " + dir.getAbsolutePath());
+            }
+            FileUtils.writeByteArrayToFile(tmp, apk);
+            if (!tmp.renameTo(artifact)) {
+                throw new IOException("unable to publish " + artifact.getAbsolutePath());
+            }
+            mCacheManager.onCreated(artifact);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to keep overlay artifact - " + artifact.getName(), e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private File getArtifact(String themePackage, String inputHash) {
+        return new File(mRoot, themePackage + "/" + ARTIFACTS_DIR + "/"
+                + inputHash.substring(HASH_PREFIX.length()) + ".apk");
+    }
+
+    private static void hashTree(MessageDigest digest, File dir, String path)
+            throws IOException {
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        final byte[] buffer = new byte[8192];
+        for (String name : names) {
+            final File file = new File(dir, name);
+            final String child = path + "/" + name;
+            if (file.isDirectory()) {
+                hashTree(digest, file, child);
+                continue;
+            }
+            update(digest, child);
+            update(digest, String.valueOf(file.length()));
+            try (InputStream is = new FileInputStream(file)) {
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // separator, so "ab" + "c" differs from "a" + "bc"
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.io.File;
+
+/**
+ * Turns an extracted overlay ({@code AndroidManifest.xml} and {@code res/}) into an unsigned
+ * APK.
+ */
+public interface OverlayCompiler {
+
+    String FRAMEWORK_RES = "/system/framework/framework-res.apk";
+
+    /**
+     * @param overlayPath directory holding the manifest and the res tree
+     * @param targetApk APK of the target package, or null
+     * @param output where the unsigned APK goes
+     * @return true on success
+     */
+    boolean compile(String overlayPath, String targetApk, File output);
+
+    /**
+     * Releases the resources held by the compiler.
+     */
+    void close();
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.content.om.OverlayInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory snapshot of the meta-data we read from installed overlay packages.
+ *
+ * Entries are loaded in bulk on a miss and dropped again from {@link PackageChangeReceiver}
+ * when the overlay or its target changes, so listing overlays only costs the
+ * {@code getAllOverlays} call.
+ */
+public class OverlayMetadataCache {
+
+    private static final String TAG = "SlimTM-OverlayMetadataCache";
+
+    // above this many misses a single getInstalledApplications() is cheaper
+    private static final int BULK_LOAD_THRESHOLD = 8;
+
+    private static OverlayMetadataCache sInstance;
+
+    static final class Entry {
+        String overlayPackage;
+        String targetPackageName;
+        String targetPackage;
+        boolean targetPackageInstalled;
+        String label;
+        int overlayVersion;
+        int appVersion;
+        String themeVersion;
+        String themePackage;
+    }
+
+    private final Context mContext;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private OverlayMetadataCache(Context context) {
+        mContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+    }
+
+    public static synchronized OverlayMetadataCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OverlayMetadataCache(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Makes sure every overlay in the given map has an entry, loading the missing ones in
+     * one pass.
+     */
+    public synchronized void prefetch(Map<String, List<OverlayInfo>> overlayInfos) {
+        final Map<String, OverlayInfo> missing = new HashMap<>();
+        for (List<OverlayInfo> overlays : overlayInfos.values()) {
+            for (OverlayInfo oi : overlays) {
+                if (!mEntries.containsKey(oi.packageName)) {
+                    missing.put(oi.packageName, oi);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        final PackageManager pm = mContext.getPackageManager();
+        if (missing.size() > BULK_LOAD_THRESHOLD) {
+            // overlays and their targets are all resolved from this one call
+            final Map<String, ApplicationInfo> installed = new HashMap<>();
+            for (ApplicationInfo info :
+                    pm.getInstalledApplications(PackageManager.GET_META_DATA)) {
+                installed.put(info.packageName, info);
+            }
+            final Map<String, String> labels = new HashMap<>();
+            for (OverlayInfo oi : missing.values()) {
+                final ApplicationInfo info = installed.get(oi.packageName);
+                if (info != null) {
+                    load(pm, info, oi.targetPackageName, installed, labels);
+                }
+            }
+            return;
+        }
+        for (OverlayInfo oi : missing.values()) {
+            try {
+                load(pm, pm.getApplicationInfo(oi.packageName, PackageManager.GET_META_DATA),
+                        oi.targetPackageName, null, null);
+            } catch (PackageManager.NameNotFoundException e) {
+                // not installed anymore
+            }
+        }
+    }
+
+    /**
+     * @return the cached entry, or null if the overlay is not installed or has no meta-data
+     */
+    public synchronized Entry get(String overlayPackage, String targetPackageName) {
+        Entry entry = mEntries.get(overlayPackage);
+        if (entry == null) {
+            final PackageManager pm = mContext.getPackageManager();
+            try {
+                entry = load(pm, pm.getApplicationInfo(overlayPackage,
+                        PackageManager.GET_META_DATA), targetPackageName, null, null);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    public synchronized void onPackageChanged(String packageName) {
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (packageName.equals(entry.overlayPackage)
+                    || packageName.equals(entry.targetPackage)
+                    || packageName.equals(entry.targetPackageName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidate() {
+        mEntries.clear();
+    }
+
+    /**
+     * @param installed all installed applications, or null to look the target up
+     * @param labels target labels loaded in the same pass, or null
+     */
+    private Entry load(PackageManager pm, ApplicationInfo aInfo, String targetPackageName,
+            Map<String, ApplicationInfo> installed, Map<String, String> labels) {
+        if (aInfo.metaData == null) {
+            Log.e(TAG, "overlay is missing metaData - " + aInfo.packageName);
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.overlayPackage = aInfo.packageName;
+        entry.targetPackageName = targetPackageName;
+        entry.targetPackage = aInfo.metaData.getString("target_package", targetPackageName);
+        ApplicationInfo targetInfo = null;
+        if (installed != null) {
+            targetInfo = installed.get(entry.targetPackage);
+        } else {
+            try {
+                targetInfo = pm.getApplicationInfo(entry.targetPackage, 0);
+            } catch (PackageManager.NameNotFoundException ex) {
+                // not installed
+            }
+        }
+        entry.targetPackageInstalled = targetInfo != null;
+        if (targetInfo == null) {
+            entry.label = aInfo.loadLabel(pm).toString();
+        } else if (labels != null && labels.containsKey(entry.targetPackage)) {
+            entry.label = labels.get(entry.targetPackage);
+        } else {
+            entry.label = targetInfo.loadLabel(pm).toString();
+            if (labels != null) {
+                labels.put(entry.targetPackage, entry.label);
+            }
+        }
+        final OverlayVersionTable versions = OverlayVersionTable.getInstance(mContext);
+        final String inputHash = aInfo.metaData.getString(OverlayArtifactCache.META_INPUT_HASH);
+        entry.overlayVersion = versions.getThemeVersionCode(entry.overlayPackage, inputHash,
+                aInfo.metaData.getInt("overlay_version", -1));
+        entry.appVersion = aInfo.metaData.getInt("app_version", -1);
+        entry.themeVersion = versions.getThemeVersion(entry.overlayPackage, inputHash,
+                aInfo.metaData.getString("theme_version", ""));
+        entry.themePackage = aInfo.metaData.getString("theme_package", null);
+        if (entry.themePackage == null) {
+            // fallback substratum compatibility
+            entry.themePackage = String.format("%s (Substratum)",
+                    aInfo.metaData.getString("Substratum_Parent", null));
+        }
+        mEntries.put(entry.overlayPackage, entry);
+        return entry;
+    }
+}
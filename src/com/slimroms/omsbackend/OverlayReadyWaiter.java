@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+/**
+ * Waits for the overlay manager to pick up a freshly installed overlay.
+ *
+ * The overlay manager is asked again whenever a package or overlay broadcast arrives, and
+ * otherwise with an exponential backoff, so a waiting install neither sleeps longer than
+ * needed nor hangs when the overlay never shows up.
+ */
+public class OverlayReadyWaiter {
+
+    private static final String TAG = "SlimTM-OverlayReadyWaiter";
+
+    private static final long INITIAL_POLL_MS = 10;
+    private static final long MAX_POLL_MS = 250;
+
+    private final Context mContext;
+    private final IOverlayManager mOverlayManager;
+    private final Object mLock = new Object();
+    private int mBroadcasts;
+    private boolean mRegistered;
+
+    private int mWaits;
+    private int mTimeouts;
+    private long mTotalMs;
+    private long mMaxMs;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mLock) {
+                mBroadcasts++;
+                mLock.notifyAll();
+            }
+        }
+    };
+
+    public OverlayReadyWaiter(Context context, IOverlayManager overlayManager) {
+        mContext = context;
+        mOverlayManager = overlayManager;
+    }
+
+    public void register() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(PackageChangeReceiver.ACTION_OVERLAY_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mReceiver, filter);
+        mRegistered = true;
+    }
+
+    public void unregister() {
+        if (mRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mRegistered = false;
+        }
+    }
+
+    /**
+     * @return the overlay info of the package, or null if it did not show up in time
+     */
+    public OverlayInfo await(String packageName, long timeoutMs) throws InterruptedException {
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + timeoutMs;
+        long poll = INITIAL_POLL_MS;
+        OverlayInfo info = null;
+        while (true) {
+            final int broadcasts;
+            synchronized (mLock) {
+                broadcasts = mBroadcasts;
+            }
+            try {
+                info = mOverlayManager.getOverlayInfo(packageName, UserHandle.USER_CURRENT);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (info != null || remaining <= 0) {
+                break;
+            }
+            synchronized (mLock) {
+                // a broadcast that came in during the query is not waited for
+                if (broadcasts == mBroadcasts) {
+                    mLock.wait(Math.min(poll, remaining));
+                }
+            }
+            poll = Math.min(poll * 2, MAX_POLL_MS);
+        }
+        final long waited = SystemClock.elapsedRealtime() - start;
+        synchronized (mLock) {
+            mWaits++;
+            mTotalMs += waited;
+            mMaxMs = Math.max(mMaxMs, waited);
+            if (info == null) {
+                mTimeouts++;
+            }
+        }
+        if (info == null) {
+            Log.e(TAG, packageName + " did not show up within " + timeoutMs + "ms");
+        }
+        return info;
+    }
+
+    public String getStats() {
+        synchronized (mLock) {
+            return "overlay waits=" + mWaits + " timeouts=" + mTimeouts
+                    + " avg=" + (mWaits > 0 ? mTotalMs / mWaits : 0) + "ms max=" + mMaxMs
+                    + "ms";
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.util.Log;
+
+import kellinwood.security.zipsigner.KeySet;
+import kellinwood.security.zipsigner.ZipSigner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Signs overlay APKs in place with APK Signature Scheme v2.
+ *
+ * The test key is loaded once. Signing reads the entries of the APK a single time to digest
+ * them and then only rewrites its tail: the signing block goes where the central directory
+ * was, followed by the central directory and the end of central directory record.
+ */
+public class OverlaySigner {
+
+    private static final String TAG = "SlimTM-OverlaySigner";
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int EOCD_SIZE = 22;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int MAX_COMMENT = 0xffff;
+
+    private static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final byte[] APK_SIG_BLOCK_MAGIC =
+            "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+
+    private PrivateKey mPrivateKey;
+    private X509Certificate mCertificate;
+
+    public OverlaySigner() {
+    }
+
+    OverlaySigner(PrivateKey privateKey, X509Certificate certificate) {
+        mPrivateKey = privateKey;
+        mCertificate = certificate;
+    }
+
+    /**
+     * Adds a v2 signature to the APK, which must not be signed yet.
+     */
+    public void sign(File apk) throws IOException, GeneralSecurityException {
+        final long start = System.currentTimeMillis();
+        loadKey();
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            final int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+            final ByteBuffer tail = read(channel, size - tailSize, tailSize);
+            final long eocdOffset = size - tailSize + findEocd(tail);
+            final ByteBuffer eocd = read(channel, eocdOffset, (int) (size - eocdOffset));
+            final long cdOffset = getCentralDirectoryOffset(eocd, eocdOffset);
+            if (cdOffset >= APK_SIG_BLOCK_MAGIC.length && Arrays.equals(APK_SIG_BLOCK_MAGIC,
+                    read(channel, cdOffset - APK_SIG_BLOCK_MAGIC.length,
+                            APK_SIG_BLOCK_MAGIC.length).array())) {
+                throw new IOException("already signed");
+            }
+            final ByteBuffer cd = read(channel, cdOffset, (int) (eocdOffset - cdOffset));
+
+            final List<byte[]> chunkDigests = new ArrayList<>();
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            for (long pos = 0; pos < cdOffset; pos += CHUNK_SIZE) {
+                chunk.clear();
+                chunk.limit((int) Math.min(CHUNK_SIZE, cdOffset - pos));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, pos + chunk.position()) < 0) {
+                        throw new IOException("unexpected end of " + apk.getName());
+                    }
+                }
+                chunk.flip();
+                chunkDigests.add(digestChunk(md, chunk));
+            }
+            final byte[] block = createSigningBlock(md, chunkDigests, cd.duplicate(),
+                    eocd.duplicate());
+
+            eocd.putInt(16, (int) (cdOffset + block.length));
+            channel.position(cdOffset);
+            write(channel, ByteBuffer.wrap(block));
+            write(channel, cd);
+            write(channel, eocd);
+            channel.truncate(channel.position());
+        }
+        Log.d(TAG, "Signed " + apk.getName() + " in " + (System.currentTimeMillis() - start)
+                + "ms");
+    }
+
+    /**
+     * Same as {@link #sign(File)} for an APK held in memory.
+     *
+     * @return the signed APK
+     */
+    public byte[] sign(byte[] apk) throws IOException, GeneralSecurityException {
+        loadKey();
+        final ByteBuffer buffer = ByteBuffer.wrap(apk).order(ByteOrder.LITTLE_ENDIAN);
+        final int eocdOffset = findEocd(buffer);
+        final ByteBuffer eocd = slice(buffer, eocdOffset, apk.length - eocdOffset);
+        final int cdOffset = (int) getCentralDirectoryOffset(eocd, eocdOffset);
+        if (cdOffset >= APK_SIG_BLOCK_MAGIC.length && Arrays.equals(APK_SIG_BLOCK_MAGIC,
+                Arrays.copyOfRange(apk, cdOffset - APK_SIG_BLOCK_MAGIC.length, cdOffset))) {
+            throw new IOException("already signed");
+        }
+
+        final List<byte[]> chunkDigests = new ArrayList<>();
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        addChunkDigests(md, chunkDigests, slice(buffer, 0, cdOffset));
+        final byte[] block = createSigningBlock(md, chunkDigests,
+                slice(buffer, cdOffset, eocdOffset - cdOffset), eocd);
+
+        final byte[] signed = new byte[apk.length + block.length];
+        System.arraycopy(apk, 0, signed, 0, cdOffset);
+        System.arraycopy(block, 0, signed, cdOffset, block.length);
+        System.arraycopy(apk, cdOffset, signed, cdOffset + block.length,
+                apk.length - cdOffset);
+        ByteBuffer.wrap(signed).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(eocdOffset + block.length + 16, cdOffset + block.length);
+        return signed;
+    }
+
+    private synchronized void loadKey() throws GeneralSecurityException {
+        if (mPrivateKey != null) {
+            return;
+        }
+        try {
+            final ZipSigner zipSigner = new ZipSigner();
+            zipSigner.setKeymode("testkey");
+            final KeySet keySet = zipSigner.getKeySet();
+            mCertificate = keySet.getPublicKey();
+            mPrivateKey = keySet.getPrivateKey();
+        } catch (Exception e) {
+            throw new GeneralSecurityException("unable to load testkey", e);
+        }
+    }
+
+    /**
+     * @param chunkDigests the digests of the chunks before the central directory
+     */
+    private byte[] createSigningBlock(MessageDigest md, List<byte[]> chunkDigests,
+            ByteBuffer cd, ByteBuffer eocd) throws GeneralSecurityException {
+        addChunkDigests(md, chunkDigests, cd);
+        // the EOCD is digested as if the central directory followed the entries directly
+        addChunkDigests(md, chunkDigests, eocd);
+        md.update((byte) 0x5a);
+        md.update(intBytes(chunkDigests.size()));
+        for (byte[] digest : chunkDigests) {
+            md.update(digest);
+        }
+        final byte[] contentDigest = md.digest();
+
+        final int algorithm;
+        final String jcaAlgorithm;
+        if ("EC".equals(mPrivateKey.getAlgorithm())) {
+            algorithm = SIGNATURE_ECDSA_WITH_SHA256;
+            jcaAlgorithm = "SHA256withECDSA";
+        } else {
+            algorithm = SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256;
+            jcaAlgorithm = "SHA256withRSA";
+        }
+
+        final byte[] signedData = lengthPrefixed(concat(
+                // digests
+                lengthPrefixed(lengthPrefixed(concat(intBytes(algorithm),
+                        lengthPrefixed(contentDigest)))),
+                // certificates
+                lengthPrefixed(lengthPrefixed(mCertificate.getEncoded())),
+                // additional attributes
+                lengthPrefixed(new byte[0])));
+
+        final Signature signature = Signature.getInstance(jcaAlgorithm);
+        signature.initSign(mPrivateKey);
+        // the signature covers the signed data without its length prefix
+        signature.update(signedData, 4, signedData.length - 4);
+
+        final byte[] signer = lengthPrefixed(concat(
+                signedData,
+                lengthPrefixed(lengthPrefixed(concat(intBytes(algorithm),
+                        lengthPrefixed(signature.sign())))),
+                lengthPrefixed(mCertificate.getPublicKey().getEncoded())));
+        final byte[] value = lengthPrefixed(signer);
+
+        // size of block, (id, value) pair, size of block again, magic
+        final int pairSize = 4 + value.length;
+        final long blockSize = 8 + pairSize + 8 + APK_SIG_BLOCK_MAGIC.length;
+        final ByteBuffer block = ByteBuffer.allocate((int) (8 + blockSize))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        block.putLong(blockSize);
+        block.putLong(pairSize);
+        block.putInt(SIGNATURE_SCHEME_V2_BLOCK_ID);
+        block.put(value);
+        block.putLong(blockSize);
+        block.put(APK_SIG_BLOCK_MAGIC);
+        return block.array();
+    }
+
+    private static void addChunkDigests(MessageDigest md, List<byte[]> digests,
+            ByteBuffer section) {
+        while (section.hasRemaining()) {
+            final ByteBuffer chunk = section.slice();
+            chunk.limit(Math.min(CHUNK_SIZE, section.remaining()));
+            section.position(section.position() + chunk.limit());
+            digests.add(digestChunk(md, chunk));
+        }
+    }
+
+    private static byte[] digestChunk(MessageDigest md, ByteBuffer chunk) {
+        md.update((byte) 0xa5);
+        md.update(intBytes(chunk.remaining()));
+        md.update(chunk);
+        return md.digest();
+    }
+
+    /**
+     * @return the offset of the end of central directory record in the buffer
+     */
+    private static int findEocd(ByteBuffer tail) throws IOException {
+        final int size = tail.limit();
+        for (int i = size - EOCD_SIZE; i >= 0 && i >= size - EOCD_SIZE - MAX_COMMENT; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && (tail.getShort(i + 20) & 0xffff) == size - EOCD_SIZE - i) {
+                return i;
+            }
+        }
+        throw new IOException("end of central directory not found");
+    }
+
+    private static long getCentralDirectoryOffset(ByteBuffer eocd, long eocdOffset)
+            throws IOException {
+        final long cdSize = eocd.getInt(12) & 0xffffffffL;
+        final long cdOffset = eocd.getInt(16) & 0xffffffffL;
+        if (cdOffset + cdSize != eocdOffset) {
+            throw new IOException("unsupported zip layout (zip64 or trailing data)");
+        }
+        return cdOffset;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] lengthPrefixed(byte[] data) {
+        return concat(intBytes(data.length), data);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
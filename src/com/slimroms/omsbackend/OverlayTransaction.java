@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects overlay enable/disable changes and applies them in one pass, followed by a single
+ * refresh of the overlay manager.
+ *
+ * Overlays of the framework are changed last, after the app overlays, so the configuration
+ * change they cause happens once everything else is in place. Changes that would not alter
+ * the current state are skipped.
+ */
+public class OverlayTransaction {
+
+    private static final String TAG = "SlimTM-OverlayTransaction";
+
+    private static final String FRAMEWORK = "android";
+
+    private final IOverlayManager mOverlayManager;
+    private final int mUserId;
+    // package -> enable, the last request for a package wins
+    private final Map<String, Boolean> mChanges = new LinkedHashMap<>();
+
+    public OverlayTransaction(IOverlayManager overlayManager, int userId) {
+        mOverlayManager = overlayManager;
+        mUserId = userId;
+    }
+
+    public synchronized void setEnabled(String packageName, boolean enable) {
+        mChanges.remove(packageName);
+        mChanges.put(packageName, enable);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mChanges.isEmpty();
+    }
+
+    /**
+     * Applies the collected changes and refreshes the overlay manager.
+     *
+     * @return the packages whose state was changed
+     */
+    public synchronized List<String> commit() {
+        final long start = System.currentTimeMillis();
+        final List<OverlayInfo> apps = new ArrayList<>();
+        final List<OverlayInfo> framework = new ArrayList<>();
+        int missing = 0;
+        int unchanged = 0;
+        for (Map.Entry<String, Boolean> change : mChanges.entrySet()) {
+            OverlayInfo info = null;
+            try {
+                info = mOverlayManager.getOverlayInfo(change.getKey(), mUserId);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+            if (info == null) {
+                Log.e(TAG, "Unknown overlay - " + change.getKey());
+                missing++;
+            } else if (info.isEnabled() == change.getValue()) {
+                unchanged++;
+            } else if (FRAMEWORK.equals(info.targetPackageName)) {
+                framework.add(info);
+            } else {
+                apps.add(info);
+            }
+        }
+
+        final List<String> changed = new ArrayList<>();
+        apply(apps, changed);
+        apply(framework, changed);
+        try {
+            mOverlayManager.refresh(mUserId);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, "Applied " + mChanges.size() + " changes: changed=" + changed.size()
+                + " unchanged=" + unchanged + " missing=" + missing + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+        mChanges.clear();
+        return changed;
+    }
+
+    private void apply(List<OverlayInfo> infos, List<String> changed) {
+        // disable before enable, so two overlays never fight over the same resources
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean enable = pass == 1;
+            for (OverlayInfo info : infos) {
+                if (mChanges.get(info.packageName) != enable) {
+                    continue;
+                }
+                try {
+                    if (mOverlayManager.setEnabled(info.packageName, enable, mUserId, false)) {
+                        changed.add(info.packageName);
+                    } else {
+                        Log.e(TAG, "Failed to " + (enable ? "enable" : "disable")
+                                + " overlay - " + info.packageName);
+                    }
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Exception while changing overlay - " + info.packageName);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Theme versions of overlays that were kept, or reinstalled from the artifact cache, because
+ * their build inputs did not change.
+ *
+ * The version meta-data of such an overlay still names the theme version it was first built
+ * for. An entry is only valid while the installed overlay carries the input hash it was
+ * recorded for, a real rebuild writes fresh meta-data and makes it obsolete. The table lives
+ * in {@code files/overlay-versions.json}.
+ */
+public class OverlayVersionTable {
+
+    private static final String TAG = "SlimTM-OverlayVersionTable";
+
+    private static final String FILE_NAME = "overlay-versions.json";
+    private static final int TABLE_VERSION = 1;
+
+    private static OverlayVersionTable sInstance;
+
+    private static final class Entry {
+        String inputHash;
+        int themeVersionCode;
+        String themeVersion;
+    }
+
+    private static final class Table {
+        int version;
+        // overlay package -> entry
+        Map<String, Entry> overlays;
+    }
+
+    private final File mFile;
+    private final Gson mGson = new GsonBuilder().create();
+    private Table mTable;
+
+    private OverlayVersionTable(Context context) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        mFile = new File(appContext.getFilesDir(), FILE_NAME);
+    }
+
+    public static synchronized OverlayVersionTable getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OverlayVersionTable(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records the theme version an overlay with the given inputs is up to date with.
+     */
+    public synchronized void record(String overlayPackage, String inputHash,
+            int themeVersionCode, String themeVersion) {
+        Entry entry = getTable().overlays.get(overlayPackage);
+        if (entry != null && entry.themeVersionCode == themeVersionCode
+                && inputHash.equals(entry.inputHash)) {
+            return;
+        }
+        entry = new Entry();
+        entry.inputHash = inputHash;
+        entry.themeVersionCode = themeVersionCode;
+        entry.themeVersion = themeVersion;
+        getTable().overlays.put(overlayPackage, entry);
+        writeTable();
+    }
+
+    /**
+     * @return the recorded theme version code, or the given one from the meta-data if the
+     *         installed overlay was built from different inputs
+     */
+    public synchronized int getThemeVersionCode(String overlayPackage, String installedHash,
+            int metaDataVersionCode) {
+        final Entry entry = getEntry(overlayPackage, installedHash);
+        return entry != null ? entry.themeVersionCode : metaDataVersionCode;
+    }
+
+    /**
+     * @return the recorded theme version name, or the given one from the meta-data if the
+     *         installed overlay was built from different inputs
+     */
+    public synchronized String getThemeVersion(String overlayPackage, String installedHash,
+            String metaDataVersion) {
+        final Entry entry = getEntry(overlayPackage, installedHash);
+        return entry != null ? entry.themeVersion : metaDataVersion;
+    }
+
+    public synchronized void onPackageRemoved(String packageName) {
+        if (getTable().overlays.remove(packageName) != null) {
+            writeTable();
+        }
+    }
+
+    private Entry getEntry(String overlayPackage, String installedHash) {
+        final Entry entry = getTable().overlays.get(overlayPackage);
+        if (entry == null || installedHash == null || !installedHash.equals(entry.inputHash)) {
+            return null;
+        }
+        return entry;
+    }
+
+    private Table getTable() {
+        if (mTable == null) {
+            mTable = readTable();
+            if (mTable == null || mTable.version != TABLE_VERSION || mTable.overlays == null) {
+                mTable = new Table();
+                mTable.version = TABLE_VERSION;
+                mTable.overlays = new HashMap<>();
+            }
+        }
+        return mTable;
+    }
+
+    private Table readTable() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try {
+            return mGson.fromJson(FileUtils.readFileToString(mFile, Charset.defaultCharset()),
+                    Table.class);
+        } catch (IOException|JsonParseException e) {
+            Log.e(TAG, "Unable to read " + mFile.getPath(), e);
+            return null;
+        }
+    }
+
+    private void writeTable() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, mGson.toJson(mTable), Charset.defaultCharset());
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to write " + mFile.getPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+public class PackageChangeReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "SlimTM-PackageChangeReceiver";
+
+    static final String ACTION_OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+            // overlay labels are localized
+            OverlayMetadataCache.getInstance(context).invalidate();
+            return;
+        }
+        final Uri data = intent.getData();
+        final String packageName = data != null ? data.getSchemeSpecificPart() : null;
+        if (packageName == null) {
+            return;
+        }
+        final String action = intent.getAction();
+        final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+        if (replacing && !Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+            // PACKAGE_REPLACED follows
+            return;
+        }
+        Log.d(TAG, action + " " + packageName);
+
+        OverlayMetadataCache.getInstance(context).onPackageChanged(packageName);
+        if (ACTION_OVERLAY_CHANGED.equals(action)) {
+            return;
+        }
+
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final ThemeCatalog catalog = ThemeCatalog.getInstance(context);
+                    if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+                        catalog.onPackageRemoved(packageName);
+                        FlavorNameTable.getInstance(context).onPackageRemoved(packageName);
+                        OverlayVersionTable.getInstance(context).onPackageRemoved(packageName);
+                        uninstallParkedOverlays(context, packageName);
+                    } else {
+                        catalog.onPackageChanged(packageName);
+                    }
+                } finally {
+                    result.finish();
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Parked overlays of a removed theme or target can never be enabled again.
+     */
+    private static void uninstallParkedOverlays(Context context, String packageName) {
+        final List<String> stale =
+                ParkedOverlays.getInstance(context).onPackageRemoved(packageName);
+        if (stale.isEmpty()) {
+            return;
+        }
+        final PackageManagerUtils pmUtils = new PackageManagerUtils(context);
+        for (final String overlay : stale) {
+            // not waited for, the broadcast would time out
+            pmUtils.uninstallPackageAsync(overlay).whenComplete(
+                    new BiConsumer<Integer, Throwable>() {
+                @Override
+                public void accept(Integer status, Throwable error) {
+                    if (status != null && status == PackageInstaller.STATUS_SUCCESS) {
+                        Log.d(TAG, "Uninstalled parked overlay " + overlay);
+                    } else {
+                        Log.e(TAG, "Failed to uninstall parked overlay " + overlay);
+                    }
+                }
+            });
+        }
+    }
+}
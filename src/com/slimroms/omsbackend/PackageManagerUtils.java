@@ -51,16 +51,36 @@ import libcore.io.IoUtils;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.SynchronousQueue;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class PackageManagerUtils {
 
     private static final String TAG = "PackageManagerUtils";
 
+    // how long the synchronous calls wait for the package installer
+    static final long COMMIT_TIMEOUT_MS = 60 * 1000;
+    private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+    private static final float PROGRESS_STEP = 0.1f;
+
+    private static final ThreadLocal<byte[]> sWriteBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[WRITE_CHUNK_SIZE];
+        }
+    };
+
     private Context mContext;
     private IPackageManager mPm;
     private IPackageInstaller mInstaller;
@@ -80,6 +100,26 @@ public class PackageManagerUtils {
     }
 
     public boolean installPackage(String inPath) throws RemoteException {
+        return await(installPackageAsync(inPath), COMMIT_TIMEOUT_MS)
+                == PackageInstaller.STATUS_SUCCESS;
+    }
+
+    /**
+     * Installs an APK held in memory, without writing it to disk first.
+     */
+    public boolean installPackage(byte[] apk) throws RemoteException {
+        return await(installPackageAsync(apk), COMMIT_TIMEOUT_MS)
+                == PackageInstaller.STATUS_SUCCESS;
+    }
+
+    /**
+     * Writes the APK into a new session and commits it. Only the write happens on the
+     * calling thread.
+     *
+     * @return the PackageInstaller status of the install. Cancelling it abandons the session.
+     */
+    public CompletableFuture<Integer> installPackageAsync(String inPath)
+            throws RemoteException {
         final InstallParams params = makeInstallParams();
         if (params.sessionParams.sizeBytes < 0 && inPath != null) {
             File file = new File(inPath);
@@ -91,26 +131,106 @@ public class PackageManagerUtils {
         final int sessionId = doCreateSession(params.sessionParams,
                 params.installerPackageName, params.userId);
 
+        boolean committed = false;
         try {
             if (inPath == null && params.sessionParams.sizeBytes == 0) {
                 Log.e(TAG, "Error: must either specify a package size or an APK file");
-                return false;
+                return failed();
             }
             if (doWriteSession(sessionId, inPath, params.sessionParams.sizeBytes, "base.apk",
                     false /*logSuccess*/) != PackageInstaller.STATUS_SUCCESS) {
-                return false;
+                return failed();
             }
-            if (doCommitSession(sessionId, false /*logSuccess*/)
-                    != PackageInstaller.STATUS_SUCCESS) {
-                return false;
+            final CompletableFuture<Integer> result = doCommitSession(sessionId,
+                    false /*logSuccess*/);
+            committed = true;
+            return result;
+        } finally {
+            if (!committed) {
+                abandonSession(sessionId);
             }
-            return true;
+        }
+    }
+
+    /**
+     * Same as {@link #installPackageAsync(String)} for an APK held in memory.
+     */
+    public CompletableFuture<Integer> installPackageAsync(byte[] apk) throws RemoteException {
+        final InstallParams params = makeInstallParams();
+        params.sessionParams.setSize(apk.length);
+
+        final int sessionId = doCreateSession(params.sessionParams,
+                params.installerPackageName, params.userId);
+
+        boolean committed = false;
+        try {
+            if (doWriteSession(sessionId, apk, "base.apk") != PackageInstaller.STATUS_SUCCESS) {
+                return failed();
+            }
+            final CompletableFuture<Integer> result = doCommitSession(sessionId,
+                    false /*logSuccess*/);
+            committed = true;
+            return result;
         } finally {
-            try {
-                mInstaller.abandonSession(sessionId);
-            } catch (Exception ignore) {
+            if (!committed) {
+                abandonSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Waits for an operation of this class to finish, cancelling it when it takes longer than
+     * the timeout.
+     *
+     * @return the PackageInstaller status, STATUS_FAILURE if the operation did not finish
+     */
+    public static int await(Future<Integer> operation, long timeoutMs) {
+        try {
+            return operation.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(TAG, "Error: no result after " + timeoutMs + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException|CancellationException e) {
+            e.printStackTrace();
+        }
+        operation.cancel(true);
+        return PackageInstaller.STATUS_FAILURE;
+    }
+
+    private static CompletableFuture<Integer> failed() {
+        return CompletableFuture.completedFuture(PackageInstaller.STATUS_FAILURE);
+    }
+
+    private void abandonSession(int sessionId) {
+        try {
+            mInstaller.abandonSession(sessionId);
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * Abandons the sessions a previous run of this app left behind, e.g. when it crashed
+     * between creating and committing a session.
+     *
+     * @return the number of abandoned sessions
+     */
+    public int abandonMySessions() {
+        int count = 0;
+        try {
+            final List<SessionInfo> sessions = mInstaller.getMySessions(
+                    new InstallParams().installerPackageName, UserHandle.USER_SYSTEM).getList();
+            for (SessionInfo info : sessions) {
+                abandonSession(info.getSessionId());
+                count++;
             }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        if (count > 0) {
+            Log.d(TAG, "Abandoned " + count + " stale sessions");
         }
+        return count;
     }
 
     private InstallParams makeInstallParams() {
@@ -143,8 +263,7 @@ public class PackageManagerUtils {
             }
         }
 
-        final SessionInfo info = mInstaller.getSessionInfo(sessionId);
-
+        final long start = System.currentTimeMillis();
         PackageInstaller.Session session = null;
         InputStream in = null;
         OutputStream out = null;
@@ -159,19 +278,21 @@ public class PackageManagerUtils {
             }
             out = session.openWrite(splitName, 0, sizeBytes);
 
-            int total = 0;
-            byte[] buffer = new byte[65536];
-            int c;
-            while ((c = in.read(buffer)) != -1) {
-                total += c;
-                out.write(buffer, 0, c);
-
-                if (info.sizeBytes > 0) {
-                    final float fraction = ((float) c / (float) info.sizeBytes);
-                    session.addProgress(fraction);
-                }
+            final ProgressReporter progress = new ProgressReporter(session, sizeBytes);
+            final long total;
+            if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+                // the session handed out a plain fd (revocable fd mode), let the kernel copy
+                total = transfer(((FileInputStream) in).getChannel(),
+                        ((FileOutputStream) out).getChannel(), progress);
+            } else {
+                total = copy(in, out, progress);
             }
+            progress.finish();
             session.fsync(out);
+            if (logSuccess) {
+                Log.d(TAG, "Wrote " + total + " bytes to session " + sessionId + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
             return PackageInstaller.STATUS_SUCCESS;
         } catch (IOException e) {
             Log.e(TAG, "Error: failed to write; " + e.getMessage());
@@ -183,7 +304,96 @@ public class PackageManagerUtils {
         }
     }
 
-    private int doCommitSession(int sessionId, boolean logSuccess) throws RemoteException {
+    private int doWriteSession(int sessionId, byte[] apk, String splitName)
+            throws RemoteException {
+        PackageInstaller.Session session = null;
+        OutputStream out = null;
+        try {
+            session = new PackageInstaller.Session(
+                    mInstaller.openSession(sessionId));
+            out = session.openWrite(splitName, 0, apk.length);
+
+            final ProgressReporter progress = new ProgressReporter(session, apk.length);
+            for (int offset = 0; offset < apk.length; offset += WRITE_CHUNK_SIZE) {
+                final int count = Math.min(WRITE_CHUNK_SIZE, apk.length - offset);
+                out.write(apk, offset, count);
+                progress.add(count);
+            }
+            progress.finish();
+            session.fsync(out);
+            return PackageInstaller.STATUS_SUCCESS;
+        } catch (IOException e) {
+            Log.e(TAG, "Error: failed to write; " + e.getMessage());
+            return PackageInstaller.STATUS_FAILURE;
+        } finally {
+            IoUtils.closeQuietly(out);
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    private static long transfer(FileChannel in, FileChannel out, ProgressReporter progress)
+            throws IOException {
+        final long size = in.size();
+        long position = 0;
+        while (position < size) {
+            final long count = in.transferTo(position, Math.min(WRITE_CHUNK_SIZE,
+                    size - position), out);
+            if (count <= 0) {
+                throw new IOException("transfer stalled at " + position + "/" + size);
+            }
+            position += count;
+            progress.add(count);
+        }
+        return position;
+    }
+
+    private static long copy(InputStream in, OutputStream out, ProgressReporter progress)
+            throws IOException {
+        // FileBridge sends every write as one message, so fewer and larger writes pay off
+        final byte[] buffer = sWriteBuffer.get();
+        long total = 0;
+        int c;
+        while ((c = in.read(buffer)) != -1) {
+            total += c;
+            out.write(buffer, 0, c);
+            progress.add(c);
+        }
+        return total;
+    }
+
+    /**
+     * Reports write progress to the session in steps of PROGRESS_STEP instead of per chunk.
+     */
+    private static class ProgressReporter {
+        private final PackageInstaller.Session mSession;
+        private final long mSize;
+        private long mPending;
+
+        ProgressReporter(PackageInstaller.Session session, long size) {
+            mSession = session;
+            mSize = size;
+        }
+
+        void add(long count) {
+            if (mSize <= 0) {
+                return;
+            }
+            mPending += count;
+            if (mPending >= mSize * PROGRESS_STEP) {
+                finish();
+            }
+        }
+
+        void finish() {
+            if (mSize > 0 && mPending > 0) {
+                mSession.addProgress((float) mPending / (float) mSize);
+                mPending = 0;
+            }
+        }
+    }
+
+    private CompletableFuture<Integer> doCommitSession(final int sessionId,
+            boolean logSuccess) throws RemoteException {
         PackageInstaller.Session session = null;
         try {
             session = new PackageInstaller.Session(
@@ -192,13 +402,14 @@ public class PackageManagerUtils {
             final LocalIntentReceiver receiver = new LocalIntentReceiver();
             session.commit(receiver.getIntentSender());
 
-            final Intent result = receiver.getResult();
-            final int status = result.getIntExtra(PackageInstaller.EXTRA_STATUS,
-                    PackageInstaller.STATUS_FAILURE);
-            if (status != PackageInstaller.STATUS_SUCCESS) {
-                Log.e(TAG, "Failure ["
-                        + result.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE) + "]");
-            }
+            final CompletableFuture<Integer> status = receiver.getStatus();
+            status.whenComplete(new BiConsumer<Integer, Throwable>() {
+                @Override
+                public void accept(Integer result, Throwable error) {
+                    // a no-op after a successful commit, cleans up after a cancelled one
+                    abandonSession(sessionId);
+                }
+            });
             return status;
         } finally {
             IoUtils.closeQuietly(session);
@@ -211,32 +422,44 @@ public class PackageManagerUtils {
     }
 
     public boolean uninstallPackage(String packageName) {
+        return await(uninstallPackageAsync(packageName), COMMIT_TIMEOUT_MS)
+                == PackageInstaller.STATUS_SUCCESS;
+    }
+
+    /**
+     * @return the PackageInstaller status of the uninstall
+     */
+    public CompletableFuture<Integer> uninstallPackageAsync(String packageName) {
         LocalIntentReceiver receiver = new LocalIntentReceiver();
         try {
             mInstaller.uninstall(packageName, mContext.getPackageName(), 0,
                     receiver.getIntentSender(), UserHandle.getCallingUserId());
-            final Intent intent = receiver.getResult();
-            final int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS,
-                    PackageInstaller.STATUS_FAILURE);
-            return status == PackageInstaller.STATUS_SUCCESS;
+            return receiver.getStatus();
         } catch (RemoteException ex) {
             ex.printStackTrace();
         }
-        return false;
+        return failed();
     }
 
+    /**
+     * Turns the status intent of the package installer into a future. Nothing blocks while
+     * the operation is in flight, a status that arrives after the future was cancelled is
+     * dropped.
+     */
     private static class LocalIntentReceiver {
-        private final SynchronousQueue<Intent> mResult = new SynchronousQueue<>();
+        private final CompletableFuture<Integer> mStatus = new CompletableFuture<>();
 
         private IIntentSender.Stub mLocalSender = new IIntentSender.Stub() {
             @Override
             public void send(int code, Intent intent, String resolvedType,
                     IIntentReceiver finishedReceiver, String requiredPermission, Bundle options) {
-                try {
-                    mResult.offer(intent, 5, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                final int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS,
+                        PackageInstaller.STATUS_FAILURE);
+                if (status != PackageInstaller.STATUS_SUCCESS) {
+                    Log.e(TAG, "Failure ["
+                            + intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE) + "]");
                 }
+                mStatus.complete(status);
             }
         };
 
@@ -244,12 +467,8 @@ public class PackageManagerUtils {
             return new IntentSender((IIntentSender) mLocalSender);
         }
 
-        public Intent getResult() {
-            try {
-                return mResult.take();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+        public CompletableFuture<Integer> getStatus() {
+            return mStatus;
         }
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Overlays that were removed from the current setup but kept installed and disabled, so that
+ * switching back to their theme only needs to enable them again.
+ *
+ * Each parked overlay remembers the theme and target versions it was built for. Once either
+ * changes, or a package is gone, the overlay would be rebuilt anyway and it is handed out by
+ * {@link #collectStale} for uninstallation. The list lives in {@code files/parked-overlays.json}.
+ */
+public class ParkedOverlays {
+
+    private static final String TAG = "SlimTM-ParkedOverlays";
+
+    private static final String FILE_NAME = "parked-overlays.json";
+    private static final int TABLE_VERSION = 1;
+
+    private static ParkedOverlays sInstance;
+
+    private static final class Entry {
+        String themePackage;
+        int themeVersionCode;
+        String targetPackage;
+        int targetVersionCode;
+        long parkedAt;
+    }
+
+    private static final class Table {
+        int version;
+        // overlay package -> entry
+        Map<String, Entry> overlays;
+    }
+
+    private final File mFile;
+    private final Gson mGson = new GsonBuilder().create();
+    private Table mTable;
+
+    private ParkedOverlays(Context context) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        mFile = new File(appContext.getFilesDir(), FILE_NAME);
+    }
+
+    public static synchronized ParkedOverlays getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ParkedOverlays(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records a disabled overlay as parked.
+     *
+     * @return false if the theme or the target is not installed, the overlay should be
+     *         uninstalled then
+     */
+    public synchronized boolean park(PackageManager pm, String overlayPackage,
+            String themePackage, String targetPackage) {
+        final Entry entry = new Entry();
+        entry.themePackage = themePackage;
+        entry.targetPackage = targetPackage;
+        entry.themeVersionCode = getVersionCode(pm, themePackage);
+        entry.targetVersionCode = getVersionCode(pm, targetPackage);
+        if (themePackage == null || entry.themeVersionCode < 0 || entry.targetVersionCode < 0) {
+            return false;
+        }
+        entry.parkedAt = System.currentTimeMillis();
+        getTable().overlays.put(overlayPackage, entry);
+        writeTable();
+        return true;
+    }
+
+    /**
+     * Forgets an overlay that is in use again.
+     */
+    public synchronized void unpark(String overlayPackage) {
+        if (getTable().overlays.remove(overlayPackage) != null) {
+            writeTable();
+        }
+    }
+
+    /**
+     * Forgets the parked overlays of a removed package, whether it was their theme, their
+     * target or the overlay itself.
+     *
+     * @return the overlays to uninstall
+     */
+    public synchronized List<String> onPackageRemoved(String packageName) {
+        final List<String> stale = new ArrayList<>();
+        boolean changed = false;
+        final Iterator<Map.Entry<String, Entry>> it = getTable().overlays.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().equals(packageName)) {
+                it.remove();
+                changed = true;
+            } else if (packageName.equals(e.getValue().themePackage)
+                    || packageName.equals(e.getValue().targetPackage)) {
+                stale.add(e.getKey());
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            writeTable();
+        }
+        return stale;
+    }
+
+    /**
+     * Forgets the parked overlays that can not be used as they are any more.
+     *
+     * @param all forget every parked overlay, e.g. when parking was turned off
+     * @return the overlays to uninstall
+     */
+    public synchronized List<String> collectStale(PackageManager pm, boolean all) {
+        final List<String> stale = new ArrayList<>();
+        final Iterator<Map.Entry<String, Entry>> it = getTable().overlays.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Entry> e = it.next();
+            final Entry entry = e.getValue();
+            if (getVersionCode(pm, e.getKey()) < 0) {
+                // uninstalled by someone else
+                it.remove();
+            } else if (all || getVersionCode(pm, entry.themePackage) != entry.themeVersionCode
+                    || getVersionCode(pm, entry.targetPackage) != entry.targetVersionCode) {
+                stale.add(e.getKey());
+                it.remove();
+            }
+        }
+        if (!stale.isEmpty()) {
+            writeTable();
+        }
+        return stale;
+    }
+
+    private static int getVersionCode(PackageManager pm, String packageName) {
+        if (packageName == null) {
+            return -1;
+        }
+        try {
+            return pm.getPackageInfo(packageName, 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private Table getTable() {
+        if (mTable == null) {
+            mTable = readTable();
+            if (mTable == null || mTable.version != TABLE_VERSION || mTable.overlays == null) {
+                mTable = new Table();
+                mTable.version = TABLE_VERSION;
+                mTable.overlays = new HashMap<>();
+            }
+        }
+        return mTable;
+    }
+
+    private Table readTable() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try {
+            return mGson.fromJson(FileUtils.readFileToString(mFile, Charset.defaultCharset()),
+                    Table.class);
+        } catch (IOException|JsonParseException e) {
+            Log.e(TAG, "Unable to read " + mFile.getPath(), e);
+            return null;
+        }
+    }
+
+    private void writeTable() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, mGson.toJson(mTable), Charset.defaultCharset());
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to write " + mFile.getPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs external tools.
+ *
+ * stdout and stderr are drained on their own threads while the process runs, so a chatty
+ * tool can not block on a full pipe, and only the first {@link #MAX_OUTPUT} bytes of each
+ * are kept. Every run has a timeout, and a run is killed when the calling thread is
+ * interrupted (e.g. by cancelling the build future) or when {@link #cancelAll()} is called.
+ */
+public class ProcessRunner {
+
+    private static final String TAG = "SlimTM-ProcessRunner";
+
+    static final int MAX_OUTPUT = 64 * 1024;
+    private static final long DRAIN_TIMEOUT_MS = 5 * 1000;
+    private static final long KILL_TIMEOUT_MS = 1000;
+    // Process.waitFor(long, TimeUnit) is API 26, exits are polled with a growing interval
+    private static final long INITIAL_POLL_MS = 5;
+    private static final long MAX_POLL_MS = 100;
+
+    public static final class Result {
+        public final int exitCode;
+        public final String stdout;
+        public final String stderr;
+        public final boolean timedOut;
+        public final boolean cancelled;
+        public final long durationMs;
+
+        Result(int exitCode, String stdout, String stderr, boolean timedOut,
+                boolean cancelled, long durationMs) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.timedOut = timedOut;
+            this.cancelled = cancelled;
+            this.durationMs = durationMs;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0 && !timedOut && !cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "exitCode:" + exitCode + (timedOut ? " timed out" : "")
+                    + (cancelled ? " cancelled" : "") + " time:" + durationMs + "ms"
+                    + " error: " + stderr;
+        }
+    }
+
+    private final ExecutorService mDrainers = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r,
+                            "OmsBackend-drain-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Set<Process> mRunning = new HashSet<>();
+    private boolean mCancelled;
+
+    private final AtomicLong mRuns = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mCancellations = new AtomicLong();
+    private final AtomicLong mTotalMs = new AtomicLong();
+    private final AtomicLong mMaxMs = new AtomicLong();
+
+    /**
+     * Runs the command to completion, or until it times out or is cancelled.
+     *
+     * @throws IOException if the process could not be started
+     */
+    public Result run(String[] command, long timeoutMs) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Process process;
+        synchronized (mRunning) {
+            if (mCancelled) {
+                return record(command, new Result(-1, "", "", false, true, 0));
+            }
+            process = new ProcessBuilder(command).start();
+            mRunning.add(process);
+        }
+        final Future<String> stdout = mDrainers.submit(new Drainer(process.getInputStream()));
+        final Future<String> stderr = mDrainers.submit(new Drainer(process.getErrorStream()));
+        boolean timedOut = false;
+        boolean cancelled = false;
+        int exitCode = -1;
+        try {
+            process.getOutputStream().close();
+            if (waitFor(process, timeoutMs)) {
+                exitCode = process.exitValue();
+            } else {
+                timedOut = true;
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (mRunning) {
+                mRunning.remove(process);
+                cancelled |= mCancelled;
+            }
+            if (timedOut || cancelled) {
+                kill(process);
+            }
+        }
+        return record(command, new Result(exitCode, collect(stdout), collect(stderr),
+                timedOut, cancelled, System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Kills every running process and refuses new runs.
+     */
+    public void cancelAll() {
+        synchronized (mRunning) {
+            mCancelled = true;
+            for (Process process : mRunning) {
+                process.destroy();
+            }
+        }
+        mDrainers.shutdown();
+    }
+
+    public String getStats() {
+        final long runs = mRuns.get();
+        return "tool runs=" + runs + " failures=" + mFailures.get()
+                + " timeouts=" + mTimeouts.get() + " cancelled=" + mCancellations.get()
+                + " avg=" + (runs > 0 ? mTotalMs.get() / runs : 0) + "ms"
+                + " max=" + mMaxMs.get() + "ms";
+    }
+
+    private Result record(String[] command, Result result) {
+        mRuns.incrementAndGet();
+        mTotalMs.addAndGet(result.durationMs);
+        long max;
+        while ((max = mMaxMs.get()) < result.durationMs
+                && !mMaxMs.compareAndSet(max, result.durationMs)) {
+            // retry
+        }
+        if (result.timedOut) {
+            mTimeouts.incrementAndGet();
+        }
+        if (result.cancelled) {
+            mCancellations.incrementAndGet();
+        }
+        if (!result.isSuccess()) {
+            mFailures.incrementAndGet();
+            Log.w(TAG, Arrays.toString(command) + " failed - " + result);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the process exited within the timeout
+     */
+    private static boolean waitFor(Process process, long timeoutMs)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long poll = INITIAL_POLL_MS;
+        while (true) {
+            try {
+                process.exitValue();
+                return true;
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(poll, remaining));
+            poll = Math.min(poll * 2, MAX_POLL_MS);
+        }
+    }
+
+    private static void kill(Process process) {
+        // SIGKILL on Android, the tools we run have nothing to clean up
+        process.destroy();
+        try {
+            if (!waitFor(process, KILL_TIMEOUT_MS)) {
+                Log.w(TAG, "Process did not exit after being killed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String collect(Future<String> output) {
+        try {
+            return output.get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException|TimeoutException e) {
+            // a child that inherited the pipe keeps it open, don't wait for it
+        }
+        output.cancel(true);
+        return "";
+    }
+
+    /**
+     * Reads a stream to the end, keeping at most MAX_OUTPUT bytes of it.
+     */
+    private static final class Drainer implements Callable<String> {
+        private final InputStream mStream;
+
+        Drainer(InputStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public String call() throws IOException {
+            final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            long dropped = 0;
+            try (InputStream is = mStream) {
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    final int keep = Math.min(count, MAX_OUTPUT - kept.size());
+                    kept.write(buffer, 0, keep);
+                    dropped += count - keep;
+                }
+            }
+            String output = new String(kept.toByteArray(), Charset.defaultCharset());
+            if (dropped > 0) {
+                output += "... (" + dropped + " bytes dropped)";
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Little endian buffer for the chunks of compiled resources (resources.arsc and binary XML),
+ * see frameworks/base/include/androidfw/ResourceTypes.h.
+ */
+class ResourceChunkBuffer {
+
+    static final int RES_STRING_POOL_TYPE = 0x0001;
+    static final int RES_TABLE_TYPE = 0x0002;
+    static final int RES_XML_TYPE = 0x0003;
+    static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+    static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    static final int RES_TABLE_PACKAGE_TYPE = 0x0200;
+    static final int RES_TABLE_TYPE_TYPE = 0x0201;
+    static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+
+    static final int NO_INDEX = 0xffffffff;
+
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+
+    private byte[] mData = new byte[4096];
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        mData[mSize++] = (byte) value;
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        mData[mSize++] = (byte) value;
+        mData[mSize++] = (byte) (value >> 8);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        setInt(mSize, value);
+        mSize += 4;
+    }
+
+    void putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, mData, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    void setInt(int offset, int value) {
+        mData[offset] = (byte) value;
+        mData[offset + 1] = (byte) (value >> 8);
+        mData[offset + 2] = (byte) (value >> 16);
+        mData[offset + 3] = (byte) (value >> 24);
+    }
+
+    void align4() {
+        while ((mSize & 3) != 0) {
+            putByte(0);
+        }
+    }
+
+    /**
+     * Writes a ResChunk_header whose size is filled in by {@link #endChunk(int)}.
+     *
+     * @return the offset of the chunk
+     */
+    int startChunk(int type, int headerSize) {
+        final int start = mSize;
+        putShort(type);
+        putShort(headerSize);
+        putInt(0);
+        return start;
+    }
+
+    void endChunk(int start) {
+        setInt(start + 4, mSize - start);
+    }
+
+    /**
+     * Writes a UTF-8 ResStringPool without styles.
+     */
+    void putStringPool(List<String> strings) {
+        final int start = startChunk(RES_STRING_POOL_TYPE, STRING_POOL_HEADER_SIZE);
+        putInt(strings.size());
+        putInt(0);
+        putInt(UTF8_FLAG);
+        final int stringsStartOffset = mSize;
+        putInt(0);
+        putInt(0);
+        final int offsetsStart = mSize;
+        for (int i = 0; i < strings.size(); i++) {
+            putInt(0);
+        }
+        final int stringsStart = mSize;
+        if (!strings.isEmpty()) {
+            setInt(stringsStartOffset, stringsStart - start);
+        }
+        for (int i = 0; i < strings.size(); i++) {
+            setInt(offsetsStart + i * 4, mSize - stringsStart);
+            final String s = strings.get(i);
+            final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            putLength(s.length());
+            putLength(utf8.length);
+            putBytes(utf8);
+            putByte(0);
+        }
+        align4();
+        endChunk(start);
+    }
+
+    private void putLength(int length) {
+        if (length > 0x7f) {
+            putByte(0x80 | (length >> 8));
+        }
+        putByte(length & 0xff);
+    }
+
+    /**
+     * @return false if the string can not be stored in a UTF-8 pool
+     */
+    static boolean fitsStringPool(String s) {
+        return s.length() <= 0x7fff && s.getBytes(StandardCharsets.UTF_8).length <= 0x7fff;
+    }
+
+    private void ensure(int count) {
+        if (mSize + count > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + count));
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.util.Arrays;
+
+/**
+ * The subset of resource qualifiers the in-process compiler understands, encoded as a
+ * ResTable_config.
+ */
+class ResourceConfig {
+
+    static final int SIZE = 52;
+
+    // ResTable_config::diff() bits, used for the typeSpec flags
+    private static final int CONFIG_LOCALE = 0x0004;
+    private static final int CONFIG_ORIENTATION = 0x0080;
+    private static final int CONFIG_DENSITY = 0x0100;
+    private static final int CONFIG_SCREEN_SIZE = 0x0200;
+    private static final int CONFIG_VERSION = 0x0400;
+    private static final int CONFIG_UI_MODE = 0x1000;
+    private static final int CONFIG_SMALLEST_SCREEN_SIZE = 0x2000;
+    private static final int CONFIG_LAYOUTDIR = 0x4000;
+
+    private static final int DENSITY_ANY = 0xfffe;
+
+    static final ResourceConfig DEFAULT = parse("");
+
+    private String mLanguage;
+    private String mRegion;
+    private int mOrientation;
+    private int mDensity;
+    private int mSdkVersion;
+    private int mScreenLayout;
+    private int mUiMode;
+    private int mSmallestScreenWidthDp;
+    private int mScreenWidthDp;
+    private int mScreenHeightDp;
+
+    private byte[] mBytes;
+
+    private ResourceConfig() {
+    }
+
+    /**
+     * @param qualifiers the part of a directory name after "values", e.g. "-en-rUS-land"
+     * @throws IllegalArgumentException if a qualifier is not supported
+     */
+    static ResourceConfig parse(String qualifiers) {
+        final ResourceConfig config = new ResourceConfig();
+        if (!qualifiers.isEmpty()) {
+            if (!qualifiers.startsWith("-")) {
+                throw new IllegalArgumentException(qualifiers);
+            }
+            for (String q : qualifiers.substring(1).split("-")) {
+                config.apply(q);
+            }
+        }
+        config.applyImplicitVersion();
+        config.mBytes = config.encode();
+        return config;
+    }
+
+    /**
+     * @return the ResTable_config::diff() bits that differ from the default configuration
+     */
+    int getDiffMask() {
+        int mask = 0;
+        if (mLanguage != null) mask |= CONFIG_LOCALE;
+        if (mOrientation != 0) mask |= CONFIG_ORIENTATION;
+        if (mDensity != 0) mask |= CONFIG_DENSITY;
+        if (mSdkVersion != 0) mask |= CONFIG_VERSION;
+        if (mScreenLayout != 0) mask |= CONFIG_LAYOUTDIR;
+        if (mUiMode != 0) mask |= CONFIG_UI_MODE;
+        if (mSmallestScreenWidthDp != 0) mask |= CONFIG_SMALLEST_SCREEN_SIZE;
+        if (mScreenWidthDp != 0 || mScreenHeightDp != 0) mask |= CONFIG_SCREEN_SIZE;
+        return mask;
+    }
+
+    byte[] toBytes() {
+        return mBytes != null ? mBytes : encode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ResourceConfig
+                && Arrays.equals(toBytes(), ((ResourceConfig) o).toBytes());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes());
+    }
+
+    private void apply(String q) {
+        if (q.matches("[a-z]{2}") && mLanguage == null) {
+            mLanguage = q;
+        } else if (q.matches("r[A-Z]{2}") && mLanguage != null && mRegion == null) {
+            mRegion = q.substring(1);
+        } else if (q.equals("ldltr")) {
+            mScreenLayout = 0x40;
+        } else if (q.equals("ldrtl")) {
+            mScreenLayout = 0x80;
+        } else if (q.matches("sw\\d+dp")) {
+            mSmallestScreenWidthDp = parseDp(q.substring(2));
+        } else if (q.matches("w\\d+dp")) {
+            mScreenWidthDp = parseDp(q.substring(1));
+        } else if (q.matches("h\\d+dp")) {
+            mScreenHeightDp = parseDp(q.substring(1));
+        } else if (q.equals("port")) {
+            mOrientation = 1;
+        } else if (q.equals("land")) {
+            mOrientation = 2;
+        } else if (q.equals("notnight")) {
+            mUiMode = 0x10;
+        } else if (q.equals("night")) {
+            mUiMode = 0x20;
+        } else if (q.equals("ldpi")) {
+            mDensity = 120;
+        } else if (q.equals("mdpi")) {
+            mDensity = 160;
+        } else if (q.equals("tvdpi")) {
+            mDensity = 213;
+        } else if (q.equals("hdpi")) {
+            mDensity = 240;
+        } else if (q.equals("xhdpi")) {
+            mDensity = 320;
+        } else if (q.equals("xxhdpi")) {
+            mDensity = 480;
+        } else if (q.equals("xxxhdpi")) {
+            mDensity = 640;
+        } else if (q.equals("nodpi")) {
+            mDensity = 0xffff;
+        } else if (q.equals("anydpi")) {
+            mDensity = DENSITY_ANY;
+        } else if (q.matches("v\\d+")) {
+            mSdkVersion = Integer.parseInt(q.substring(1));
+            if (mSdkVersion > 0xffff) {
+                throw new IllegalArgumentException(q);
+            }
+        } else {
+            throw new IllegalArgumentException(q);
+        }
+    }
+
+    private static int parseDp(String value) {
+        final int dp = Integer.parseInt(value.substring(0, value.length() - 2));
+        if (dp > 0xffff) {
+            throw new IllegalArgumentException(value);
+        }
+        return dp;
+    }
+
+    /**
+     * Same as aapt: qualifiers that older platforms do not know imply a minimum sdk version.
+     */
+    private void applyImplicitVersion() {
+        int minSdk = 0;
+        if (mDensity == DENSITY_ANY) {
+            minSdk = 21;
+        } else if (mScreenLayout != 0) {
+            minSdk = 17;
+        } else if (mSmallestScreenWidthDp != 0 || mScreenWidthDp != 0
+                || mScreenHeightDp != 0) {
+            minSdk = 13;
+        } else if (mUiMode != 0) {
+            minSdk = 8;
+        } else if (mDensity != 0) {
+            minSdk = 4;
+        }
+        if (minSdk > mSdkVersion) {
+            mSdkVersion = minSdk;
+        }
+    }
+
+    private byte[] encode() {
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        b.putInt(SIZE);
+        // mcc, mnc
+        b.putInt(0);
+        putChars(b, mLanguage);
+        putChars(b, mRegion);
+        b.putByte(mOrientation);
+        // touchscreen
+        b.putByte(0);
+        b.putShort(mDensity);
+        // keyboard, navigation, inputFlags, pad
+        b.putInt(0);
+        // screenWidth, screenHeight
+        b.putInt(0);
+        b.putShort(mSdkVersion);
+        // minorVersion
+        b.putShort(0);
+        b.putByte(mScreenLayout);
+        b.putByte(mUiMode);
+        b.putShort(mSmallestScreenWidthDp);
+        b.putShort(mScreenWidthDp);
+        b.putShort(mScreenHeightDp);
+        // localeScript, localeVariant, screenLayout2 and padding
+        while (b.size() < SIZE) {
+            b.putByte(0);
+        }
+        return b.toByteArray();
+    }
+
+    private static void putChars(ResourceChunkBuffer b, String chars) {
+        b.putByte(chars != null ? chars.charAt(0) : 0);
+        b.putByte(chars != null ? chars.charAt(1) : 0);
+    }
+}
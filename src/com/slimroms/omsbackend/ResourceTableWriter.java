@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a resources.arsc with a single package of simple (non-bag) values.
+ */
+class ResourceTableWriter {
+
+    // Res_value data types
+    static final int TYPE_REFERENCE = 0x01;
+    static final int TYPE_STRING = 0x03;
+    static final int TYPE_FLOAT = 0x04;
+    static final int TYPE_DIMENSION = 0x05;
+    static final int TYPE_INT_DEC = 0x10;
+    static final int TYPE_INT_HEX = 0x11;
+    static final int TYPE_INT_BOOLEAN = 0x12;
+    static final int TYPE_INT_COLOR_ARGB8 = 0x1c;
+    static final int TYPE_INT_COLOR_RGB8 = 0x1d;
+    static final int TYPE_INT_COLOR_ARGB4 = 0x1e;
+    static final int TYPE_INT_COLOR_RGB4 = 0x1f;
+
+    private static final int PACKAGE_HEADER_SIZE = 288;
+    private static final int TYPE_SPEC_HEADER_SIZE = 16;
+    private static final int TYPE_HEADER_SIZE = 20 + ResourceConfig.SIZE;
+    private static final int ENTRY_SIZE = 8;
+    private static final int VALUE_SIZE = 8;
+    private static final int NO_ENTRY = 0xffffffff;
+
+    static final class Value {
+        final int dataType;
+        final int data;
+
+        Value(int dataType, int data) {
+            this.dataType = dataType;
+            this.data = data;
+        }
+    }
+
+    static final class Type {
+        final String name;
+        final List<String> entries = new ArrayList<>();
+        final Map<ResourceConfig, Value[]> configs = new LinkedHashMap<>();
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param types the types in id order, starting at 1
+     * @param strings the global string pool referenced by TYPE_STRING values
+     */
+    static byte[] write(int packageId, String packageName, List<Type> types,
+            List<String> strings) {
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        final int table = b.startChunk(ResourceChunkBuffer.RES_TABLE_TYPE, 12);
+        // packageCount
+        b.putInt(1);
+        b.putStringPool(strings);
+
+        final List<String> typeNames = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+        final Map<String, Integer> keyIndex = new LinkedHashMap<>();
+        for (Type type : types) {
+            typeNames.add(type.name);
+            for (String entry : type.entries) {
+                if (!keyIndex.containsKey(entry)) {
+                    keyIndex.put(entry, keys.size());
+                    keys.add(entry);
+                }
+            }
+        }
+
+        final int pkg = b.startChunk(ResourceChunkBuffer.RES_TABLE_PACKAGE_TYPE,
+                PACKAGE_HEADER_SIZE);
+        b.putInt(packageId);
+        for (int i = 0; i < 128; i++) {
+            b.putShort(i < packageName.length() ? packageName.charAt(i) : 0);
+        }
+        final int typeStringsOffset = b.size();
+        b.putInt(0);
+        // lastPublicType
+        b.putInt(typeNames.size());
+        final int keyStringsOffset = b.size();
+        b.putInt(0);
+        // lastPublicKey
+        b.putInt(keys.size());
+        // typeIdOffset
+        b.putInt(0);
+
+        b.setInt(typeStringsOffset, b.size() - pkg);
+        b.putStringPool(typeNames);
+        b.setInt(keyStringsOffset, b.size() - pkg);
+        b.putStringPool(keys);
+
+        for (int t = 0; t < types.size(); t++) {
+            final Type type = types.get(t);
+            final int count = type.entries.size();
+
+            final int spec = b.startChunk(ResourceChunkBuffer.RES_TABLE_TYPE_SPEC_TYPE,
+                    TYPE_SPEC_HEADER_SIZE);
+            b.putByte(t + 1);
+            b.putByte(0);
+            b.putShort(0);
+            b.putInt(count);
+            for (int e = 0; e < count; e++) {
+                int flags = 0;
+                for (Map.Entry<ResourceConfig, Value[]> config : type.configs.entrySet()) {
+                    if (config.getValue()[e] != null) {
+                        flags |= config.getKey().getDiffMask();
+                    }
+                }
+                b.putInt(flags);
+            }
+            b.endChunk(spec);
+
+            for (Map.Entry<ResourceConfig, Value[]> config : type.configs.entrySet()) {
+                final Value[] values = config.getValue();
+                final int chunk = b.startChunk(ResourceChunkBuffer.RES_TABLE_TYPE_TYPE,
+                        TYPE_HEADER_SIZE);
+                b.putByte(t + 1);
+                b.putByte(0);
+                b.putShort(0);
+                b.putInt(count);
+                // entriesStart
+                b.putInt(TYPE_HEADER_SIZE + count * 4);
+                b.putBytes(config.getKey().toBytes());
+                int offset = 0;
+                for (int e = 0; e < count; e++) {
+                    if (values[e] != null) {
+                        b.putInt(offset);
+                        offset += ENTRY_SIZE + VALUE_SIZE;
+                    } else {
+                        b.putInt(NO_ENTRY);
+                    }
+                }
+                for (int e = 0; e < count; e++) {
+                    final Value value = values[e];
+                    if (value == null) {
+                        continue;
+                    }
+                    // ResTable_entry
+                    b.putShort(ENTRY_SIZE);
+                    b.putShort(0);
+                    b.putInt(keyIndex.get(type.entries.get(e)));
+                    // Res_value
+                    b.putShort(VALUE_SIZE);
+                    b.putByte(0);
+                    b.putByte(value.dataType);
+                    b.putInt(value.data);
+                }
+                b.endChunk(chunk);
+            }
+        }
+        b.endChunk(pkg);
+        b.endChunk(table);
+        return b.toByteArray();
+    }
+}
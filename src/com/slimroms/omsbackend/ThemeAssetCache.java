@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+/**
+ * On-disk cache of decrypted and extracted theme assets.
+ *
+ * Entries live in {@code <root>/<theme>/extracted/<versionCode>-<cert>/<hash of asset path>},
+ * so a theme update or a re-signed theme never sees stale content. Entries are extracted
+ * into a temporary directory and renamed into place once complete.
+ */
+public class ThemeAssetCache {
+
+    private static final String TAG = "SlimTM-ThemeAssetCache";
+
+    static final String EXTRACTED_DIR = "extracted";
+
+    public interface Extractor {
+        /**
+         * Extracts the entry into the given (existing, empty) directory.
+         */
+        void extract(File target) throws IOException;
+    }
+
+    private final File mRoot;
+    private final CacheManager mCacheManager;
+
+    public ThemeAssetCache(File root, CacheManager cacheManager) {
+        mRoot = root;
+        mCacheManager = cacheManager;
+    }
+
+    /**
+     * Hands the entries left by previous runs to the cache manager and removes unfinished
+     * ones.
+     */
+    public void restore() {
+        final File[] themes = mRoot.listFiles();
+        if (themes == null) return;
+        for (File theme : themes) {
+            final File[] versions = new File(theme, EXTRACTED_DIR).listFiles();
+            if (versions == null) continue;
+            for (File version : versions) {
+                final File[] entries = version.listFiles();
+                if (entries == null) continue;
+                for (File entry : entries) {
+                    if (entry.getName().startsWith(".")) {
+                        FileUtils.deleteQuietly(entry);
+                    } else {
+                        mCacheManager.restore(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cache directory for the installed version of a theme, removing the ones
+     * left behind by other versions.
+     */
+    public File getThemeDir(PackageManager pm, String packageName)
+            throws PackageManager.NameNotFoundException {
+        final PackageInfo info = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+        final String stamp = info.versionCode + "-" + getCertificateHash(info);
+        final File extracted = new File(mRoot, packageName + "/" + EXTRACTED_DIR);
+        final File themeDir = new File(extracted, stamp);
+        if (!themeDir.exists()) {
+            // theme was updated, nothing in here can be used anymore
+            FileUtils.deleteQuietly(extracted);
+            mCacheManager.onDeleted(extracted);
+            if (!themeDir.mkdirs()) {
+                Log.e(TAG, "unable to create directory : " + themeDir.getAbsolutePath());
+            }
+        }
+        return themeDir;
+    }
+
+    public File getEntry(File themeDir, String assetPath) {
+        return new File(themeDir, sha1(assetPath));
+    }
+
+    /**
+     * @return true if the entry is available
+     */
+    public boolean lookup(File entry) {
+        if (entry.isDirectory()) {
+            mCacheManager.onHit(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the entry unless it has been published already.
+     *
+     * @return true if the entry is available
+     */
+    public boolean publish(File entry, Extractor extractor) {
+        if (lookup(entry)) {
+            return true;
+        }
+        final File tmp = new File(entry.getParentFile(), ".tmp-" + UUID.randomUUID());
+        try {
+            if (!tmp.mkdirs()) {
+                throw new IOException("unable to create directory : " + tmp.getAbsolutePath());
+            }
+            extractor.extract(tmp);
+            if (!tmp.renameTo(entry)) {
+                if (!entry.isDirectory()) {
+                    throw new IOException("unable to publish " + entry.getAbsolutePath());
+                }
+                return true;
+            }
+            mCacheManager.onCreated(entry);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Extraction failed - " + entry.getName(), e);
+            return false;
+        } finally {
+            // lost a race, or failed
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private static String getCertificateHash(PackageInfo info) {
+        if (info.signatures == null || info.signatures.length == 0) {
+            return "unsigned";
+        }
+        final String hash = sha1(info.signatures[0].toByteArray());
+        return hash.substring(0, 16);
+    }
+
+    private static String sha1(String s) {
+        return sha1(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
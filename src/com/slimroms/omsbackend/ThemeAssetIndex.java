@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Directory tree of the assets of a theme APK, read once from the zip central directory.
+ *
+ * Answers the same questions as {@link android.content.res.AssetManager#list(String)}
+ * without going through JNI and a zip scan for every directory.
+ */
+public class ThemeAssetIndex {
+
+    private static final String TAG = "SlimTM-ThemeAssetIndex";
+
+    private static final String ASSETS = "assets/";
+    private static final String ENCRYPTED_SUFFIX = ".enc";
+    private static final String[] EMPTY = new String[0];
+
+    private static final int MAX_CACHED = 4;
+    private static final Map<String, ThemeAssetIndex> sIndexes = new HashMap<>();
+
+    private final String mApkPath;
+    private final long mApkModified;
+    private final long mApkLength;
+    private final Map<String, TreeSet<String>> mDirs = new HashMap<>();
+    private final Map<String, Long> mSizes = new HashMap<>();
+
+    private ThemeAssetIndex(File apk) throws IOException {
+        mApkPath = apk.getAbsolutePath();
+        mApkModified = apk.lastModified();
+        mApkLength = apk.length();
+        mDirs.put("", new TreeSet<String>());
+        try (ZipFile zip = new ZipFile(apk)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                final ZipEntry entry = e.nextElement();
+                final String name = entry.getName();
+                if (!name.startsWith(ASSETS) || entry.isDirectory()) {
+                    continue;
+                }
+                final String path = name.substring(ASSETS.length());
+                mSizes.put(path, entry.getSize());
+                addPath(path);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the theme the given package context belongs to
+     */
+    public static ThemeAssetIndex get(Context themeContext) throws IOException {
+        final File apk = new File(themeContext.getPackageCodePath());
+        synchronized (sIndexes) {
+            ThemeAssetIndex index = sIndexes.get(apk.getAbsolutePath());
+            if (index != null && index.mApkModified == apk.lastModified()
+                    && index.mApkLength == apk.length()) {
+                return index;
+            }
+            final long start = System.currentTimeMillis();
+            index = new ThemeAssetIndex(apk);
+            Log.d(TAG, "Indexed " + apk.getPath() + ", files=" + index.mSizes.size()
+                    + " dirs=" + index.mDirs.size() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            if (sIndexes.size() >= MAX_CACHED) {
+                sIndexes.clear();
+            }
+            sIndexes.put(index.mApkPath, index);
+            return index;
+        }
+    }
+
+    /**
+     * Same as {@link android.content.res.AssetManager#list(String)}.
+     */
+    public String[] list(String path) {
+        final TreeSet<String> children = mDirs.get(trim(path));
+        return children != null ? children.toArray(new String[children.size()]) : EMPTY;
+    }
+
+    public boolean isDirectory(String path) {
+        return mDirs.containsKey(trim(path));
+    }
+
+    public boolean exists(String path) {
+        return mSizes.containsKey(trim(path)) || isDirectory(path);
+    }
+
+    /**
+     * @return true if the asset is only shipped encrypted, as {@code <path>.enc}
+     */
+    public boolean isEncrypted(String path) {
+        final String p = trim(path);
+        return !mSizes.containsKey(p) && mSizes.containsKey(p + ENCRYPTED_SUFFIX);
+    }
+
+    /**
+     * @return the uncompressed size of the asset, or -1 if there is no such file
+     */
+    public long getSize(String path) {
+        final String p = trim(path);
+        Long size = mSizes.get(p);
+        if (size == null) {
+            size = mSizes.get(p + ENCRYPTED_SUFFIX);
+        }
+        return size != null ? size : -1;
+    }
+
+    private void addPath(String path) {
+        String child = path;
+        int slash;
+        while ((slash = child.lastIndexOf('/')) >= 0) {
+            final String dir = child.substring(0, slash);
+            TreeSet<String> children = mDirs.get(dir);
+            final boolean known = children != null;
+            if (!known) {
+                children = new TreeSet<>();
+                mDirs.put(dir, children);
+            }
+            children.add(child.substring(slash + 1));
+            if (known) {
+                return;
+            }
+            child = dir;
+        }
+        mDirs.get("").add(child);
+    }
+
+    private static String trim(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of the installed theme packages.
+ *
+ * The index is built with a single package scan the first time it is needed (or when the
+ * file on disk is missing or unreadable) and is kept up to date afterwards from the package
+ * broadcasts delivered to {@link PackageChangeReceiver}.
+ */
+public class ThemeCatalog {
+
+    private static final String TAG = "SlimTM-ThemeCatalog";
+
+    private static final String INDEX_FILE = "theme-catalog.json";
+    private static final int INDEX_VERSION = 1;
+
+    private static ThemeCatalog sInstance;
+
+    static final class Entry {
+        String packageName;
+        String name;
+        String author;
+        String versionName;
+        int versionCode;
+        long lastUpdateTime;
+    }
+
+    private static final class Index {
+        int version;
+        List<Entry> themes;
+    }
+
+    private final Context mContext;
+    private final File mIndexFile;
+    private final Gson mGson = new GsonBuilder().create();
+    private final Map<String, Entry> mThemes = new HashMap<>();
+    private boolean mLoaded;
+
+    private ThemeCatalog(Context context) {
+        mContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        mIndexFile = new File(mContext.getFilesDir(), INDEX_FILE);
+    }
+
+    public static synchronized ThemeCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThemeCatalog(context);
+        }
+        return sInstance;
+    }
+
+    public synchronized List<Entry> getThemes() {
+        ensureLoaded();
+        return new ArrayList<>(mThemes.values());
+    }
+
+    public synchronized void onPackageChanged(String packageName) {
+        ensureLoaded();
+        if (indexPackage(packageName)) {
+            writeIndex();
+        }
+    }
+
+    public synchronized void onPackageRemoved(String packageName) {
+        ensureLoaded();
+        if (mThemes.remove(packageName) != null) {
+            writeIndex();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        if (readIndex()) {
+            validate();
+        } else {
+            rescan();
+        }
+        mLoaded = true;
+    }
+
+    private boolean readIndex() {
+        if (!mIndexFile.exists()) {
+            return false;
+        }
+        try {
+            final String json = FileUtils.readFileToString(mIndexFile, Charset.defaultCharset());
+            final Index index = mGson.fromJson(json, Index.class);
+            if (index == null || index.version != INDEX_VERSION || index.themes == null) {
+                Log.w(TAG, "Discarding outdated theme index");
+                return false;
+            }
+            mThemes.clear();
+            for (Entry entry : index.themes) {
+                if (entry == null || TextUtils.isEmpty(entry.packageName)) {
+                    return false;
+                }
+                mThemes.put(entry.packageName, entry);
+            }
+            return true;
+        } catch (IOException|JsonParseException e) {
+            Log.e(TAG, "Unable to read theme index, rebuilding", e);
+            return false;
+        }
+    }
+
+    private void writeIndex() {
+        final Index index = new Index();
+        index.version = INDEX_VERSION;
+        index.themes = new ArrayList<>(mThemes.values());
+        final File tmp = new File(mIndexFile.getPath() + ".tmp");
+        try {
+            FileUtils.writeStringToFile(tmp, mGson.toJson(index), Charset.defaultCharset());
+            if (!tmp.renameTo(mIndexFile)) {
+                Log.e(TAG, "Unable to write " + mIndexFile.getPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops entries for packages that were removed and re-reads the ones that were updated
+     * while we were not listening for broadcasts.
+     */
+    private void validate() {
+        final PackageManager pm = mContext.getPackageManager();
+        boolean dirty = false;
+        final List<String> updated = new ArrayList<>();
+        for (Iterator<Entry> it = mThemes.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            try {
+                final PackageInfo info = pm.getPackageInfo(entry.packageName, 0);
+                if (info.lastUpdateTime != entry.lastUpdateTime) {
+                    updated.add(entry.packageName);
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                it.remove();
+                dirty = true;
+            }
+        }
+        for (String packageName : updated) {
+            indexPackage(packageName);
+            dirty = true;
+        }
+        if (dirty) {
+            writeIndex();
+        }
+    }
+
+    private void rescan() {
+        final PackageManager pm = mContext.getPackageManager();
+        mThemes.clear();
+        final List<ApplicationInfo> apps =
+                pm.getInstalledApplications(PackageManager.GET_META_DATA);
+        for (ApplicationInfo info : apps) {
+            if (info.metaData == null) {
+                continue;
+            }
+            indexApplication(pm, info);
+        }
+        Log.d(TAG, "Rebuilt theme index, themes=" + mThemes.size());
+        writeIndex();
+    }
+
+    /**
+     * @return true if the index changed
+     */
+    private boolean indexPackage(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            return indexApplication(pm,
+                    pm.getApplicationInfo(packageName, PackageManager.GET_META_DATA));
+        } catch (PackageManager.NameNotFoundException e) {
+            return mThemes.remove(packageName) != null;
+        }
+    }
+
+    private boolean indexApplication(PackageManager pm, ApplicationInfo info) {
+        final String name = info.metaData != null
+                ? info.metaData.getString("Substratum_Name") : null;
+        if (!info.enabled || TextUtils.isEmpty(name)) {
+            return mThemes.remove(info.packageName) != null;
+        }
+        final Entry entry = new Entry();
+        try {
+            final PackageInfo pInfo = pm.getPackageInfo(info.packageName, 0);
+            entry.packageName = info.packageName;
+            entry.name = name;
+            entry.author = info.metaData.getString("Substratum_Author");
+            entry.versionName = pInfo.versionName;
+            entry.versionCode = pInfo.versionCode;
+            entry.lastUpdateTime = pInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return mThemes.remove(info.packageName) != null;
+        }
+        mThemes.put(info.packageName, entry);
+        return true;
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Compiles overlays that only contain simple values (bools, colors, dimens, drawables given
+ * as colors, integers and plain strings) without running aapt.
+ *
+ * The resource table and the binary manifest are written directly from the extracted
+ * overlay. Whatever is not understood here, like other resource directories, bags, styled
+ * strings or references that can not be resolved, is passed on to the fallback compiler.
+ */
+public class ValuesOverlayCompiler implements OverlayCompiler {
+
+    private static final String TAG = "SlimTM-ValuesOverlayCompiler";
+
+    private static final int PACKAGE_ID = 0x7f;
+    // type ids are assigned in this order to the types an overlay uses
+    private static final List<String> TYPES = Arrays.asList(
+            "bool", "color", "dimen", "drawable", "integer", "string");
+
+    // manifest attributes declared with more than the string format
+    private static final String META_DATA_VALUE = "value";
+
+    private static final Pattern REFERENCE = Pattern.compile(
+            "@(\\*)?(?:([A-Za-z0-9_.]+):)?([a-z]+)/([A-Za-z0-9_.]+)");
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.]+");
+    private static final Pattern FLOAT = Pattern.compile(
+            "\\s*([-+]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?)\\s*([a-z]*)\\s*");
+    private static final Pattern COLOR = Pattern.compile("#([0-9a-fA-F]+)");
+    private static final Pattern INT_DEC = Pattern.compile("[-+]?\\d+");
+    private static final Pattern INT_HEX = Pattern.compile("0[xX]([0-9a-fA-F]{1,8})");
+
+    // TypedValue complex units and radixes
+    private static final String[] DIMENSION_UNITS = { "px", "dp", "sp", "pt", "in", "mm" };
+    private static final int RADIX_23P0 = 0;
+    private static final int RADIX_16P7 = 1;
+    private static final int RADIX_8P15 = 2;
+    private static final int RADIX_0P23 = 3;
+
+    /**
+     * Looks up framework resources referenced by an overlay.
+     */
+    public interface ReferenceResolver {
+        /**
+         * @return the id of {@code @android:<type>/<name>}, or 0 if there is no such resource
+         */
+        int getFrameworkIdentifier(String type, String name);
+    }
+
+    private static final class UnsupportedException extends Exception {
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class RawValue {
+        final String text;
+        final boolean isFloat;
+
+        RawValue(String text, boolean isFloat) {
+            this.text = text;
+            this.isFloat = isFloat;
+        }
+    }
+
+    private final ReferenceResolver mResolver;
+    private final OverlayCompiler mFallback;
+    private int mCompiled;
+    private int mFallbacks;
+
+    public ValuesOverlayCompiler(ReferenceResolver resolver, OverlayCompiler fallback) {
+        mResolver = resolver;
+        mFallback = fallback;
+    }
+
+    @Override
+    public boolean compile(String overlayPath, String targetApk, File output) {
+        final byte[] apk = compile(overlayPath);
+        if (apk != null) {
+            try {
+                FileUtils.writeByteArrayToFile(output, apk);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write " + output.getPath(), e);
+            }
+        }
+        FileUtils.deleteQuietly(output);
+        return mFallback.compile(overlayPath, targetApk, output);
+    }
+
+    /**
+     * Compiles the overlay in memory.
+     *
+     * @return the unsigned APK, or null if the overlay needs the fallback compiler
+     */
+    public byte[] compile(String overlayPath) {
+        final long start = System.currentTimeMillis();
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            final DocumentBuilder builder = factory.newDocumentBuilder();
+            final Element manifest = builder.parse(
+                    new File(overlayPath, "AndroidManifest.xml")).getDocumentElement();
+            final String packageName = manifest.getAttribute("package");
+            final byte[] binaryManifest = BinaryXmlWriter.write(toBinaryXml(manifest));
+            final byte[] table = compileValues(builder, new File(overlayPath, "res"),
+                    packageName);
+            final byte[] apk = writeApk(binaryManifest, table);
+            synchronized (this) {
+                mCompiled++;
+            }
+            Log.d(TAG, "Compiled " + packageName + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return apk;
+        } catch (UnsupportedException e) {
+            Log.d(TAG, "Using aapt for " + overlayPath + " - " + e.getMessage());
+        } catch (IOException|SAXException|ParserConfigurationException e) {
+            Log.e(TAG, "Unable to compile " + overlayPath, e);
+        }
+        synchronized (this) {
+            mFallbacks++;
+        }
+        return null;
+    }
+
+    /**
+     * @return how many overlays were compiled here and how many went to the fallback
+     */
+    public synchronized String getStats() {
+        return "compiled=" + mCompiled + " fallbacks=" + mFallbacks;
+    }
+
+    @Override
+    public void close() {
+        mFallback.close();
+    }
+
+    private BinaryXmlWriter.Element toBinaryXml(Element element) throws UnsupportedException {
+        if (element.getNamespaceURI() != null) {
+            throw new UnsupportedException("element " + element.getTagName());
+        }
+        final BinaryXmlWriter.Element out = new BinaryXmlWriter.Element(element.getTagName());
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            final Node attr = attributes.item(i);
+            final String ns = attr.getNamespaceURI();
+            final String value = attr.getNodeValue();
+            if ("http://www.w3.org/2000/xmlns/".equals(ns)) {
+                if (!BinaryXmlWriter.ANDROID_NS.equals(value)) {
+                    throw new UnsupportedException("namespace " + value);
+                }
+                continue;
+            }
+            if (ns == null) {
+                out.attributes.add(new BinaryXmlWriter.Attribute(null, attr.getNodeName(), 0,
+                        value, ResourceTableWriter.TYPE_STRING, 0));
+                continue;
+            }
+            if (!BinaryXmlWriter.ANDROID_NS.equals(ns)) {
+                throw new UnsupportedException("namespace " + ns);
+            }
+            final String name = attr.getLocalName();
+            final int resId = mResolver.getFrameworkIdentifier("attr", name);
+            if (resId == 0) {
+                throw new UnsupportedException("attribute android:" + name);
+            }
+            ResourceTableWriter.Value typed = null;
+            if (META_DATA_VALUE.equals(name)) {
+                // string|integer|color|float|boolean, tried in the order aapt does
+                typed = parseColor(value);
+                if (typed == null) typed = parseBoolean(value);
+                if (typed == null) typed = parseInteger(value);
+                if (typed == null) typed = parseFloat(value);
+            }
+            if (typed != null) {
+                out.attributes.add(new BinaryXmlWriter.Attribute(ns, name, resId, value,
+                        typed.dataType, typed.data));
+            } else {
+                out.attributes.add(new BinaryXmlWriter.Attribute(ns, name, resId, value,
+                        ResourceTableWriter.TYPE_STRING, 0));
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                out.children.add(toBinaryXml((Element) child));
+            }
+        }
+        return out;
+    }
+
+    private byte[] compileValues(DocumentBuilder builder, File resDir, String packageName)
+            throws IOException, SAXException, UnsupportedException {
+        // type -> name -> config -> value
+        final Map<String, TreeMap<String, Map<ResourceConfig, RawValue>>> raw = new HashMap<>();
+        final String[] dirs = resDir.list();
+        if (dirs != null) {
+            Arrays.sort(dirs);
+            for (String dir : dirs) {
+                if (!dir.equals("values") && !dir.startsWith("values-")) {
+                    throw new UnsupportedException("res/" + dir);
+                }
+                final ResourceConfig config;
+                try {
+                    config = ResourceConfig.parse(dir.substring("values".length()));
+                } catch (IllegalArgumentException e) {
+                    throw new UnsupportedException("res/" + dir);
+                }
+                final String[] files = new File(resDir, dir).list();
+                if (files == null) continue;
+                Arrays.sort(files);
+                for (String file : files) {
+                    if (!file.endsWith(".xml")) {
+                        throw new UnsupportedException("res/" + dir + "/" + file);
+                    }
+                    final Document doc = builder.parse(new File(resDir, dir + "/" + file));
+                    collectValues(doc.getDocumentElement(), config, raw);
+                }
+            }
+        }
+
+        final List<ResourceTableWriter.Type> types = new ArrayList<>();
+        final Map<String, Integer> ids = new HashMap<>();
+        for (String typeName : TYPES) {
+            final TreeMap<String, Map<ResourceConfig, RawValue>> entries = raw.get(typeName);
+            if (entries == null) continue;
+            final ResourceTableWriter.Type type = new ResourceTableWriter.Type(typeName);
+            for (String name : entries.keySet()) {
+                ids.put(typeName + "/" + name, (PACKAGE_ID << 24) | ((types.size() + 1) << 16)
+                        | type.entries.size());
+                type.entries.add(name);
+            }
+            types.add(type);
+        }
+
+        final List<String> strings = new ArrayList<>();
+        final Map<String, Integer> stringIndex = new HashMap<>();
+        for (ResourceTableWriter.Type type : types) {
+            final TreeMap<String, Map<ResourceConfig, RawValue>> entries = raw.get(type.name);
+            for (int e = 0; e < type.entries.size(); e++) {
+                final String name = type.entries.get(e);
+                for (Map.Entry<ResourceConfig, RawValue> value
+                        : entries.get(name).entrySet()) {
+                    ResourceTableWriter.Value[] values = type.configs.get(value.getKey());
+                    if (values == null) {
+                        values = new ResourceTableWriter.Value[type.entries.size()];
+                        type.configs.put(value.getKey(), values);
+                    }
+                    values[e] = toValue(type.name, name, value.getValue(), packageName, ids,
+                            strings, stringIndex);
+                }
+            }
+        }
+        return ResourceTableWriter.write(PACKAGE_ID, packageName, types, strings);
+    }
+
+    private static void collectValues(Element resources, ResourceConfig config,
+            Map<String, TreeMap<String, Map<ResourceConfig, RawValue>>> raw)
+            throws UnsupportedException {
+        if (!resources.getTagName().equals("resources")) {
+            throw new UnsupportedException("root element " + resources.getTagName());
+        }
+        for (Node node = resources.getFirstChild(); node != null;
+                node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            final Element element = (Element) node;
+            final String tag = element.getTagName();
+            if (tag.equals("skip") || tag.equals("eat-comment")) {
+                continue;
+            }
+            String type = tag;
+            boolean isFloat = false;
+            if (tag.equals("item")) {
+                type = element.getAttribute("type");
+                final String format = element.getAttribute("format");
+                if (format.equals("float")) {
+                    isFloat = true;
+                } else if (!format.isEmpty()) {
+                    throw new UnsupportedException("item format " + format);
+                }
+            }
+            final String name = element.getAttribute("name");
+            if (!TYPES.contains(type) || !NAME.matcher(name).matches()
+                    || element.hasAttribute("product")) {
+                throw new UnsupportedException("<" + tag + " name=\"" + name + "\">");
+            }
+            TreeMap<String, Map<ResourceConfig, RawValue>> entries = raw.get(type);
+            if (entries == null) {
+                entries = new TreeMap<>();
+                raw.put(type, entries);
+            }
+            Map<ResourceConfig, RawValue> configs = entries.get(name);
+            if (configs == null) {
+                configs = new LinkedHashMap<>();
+                entries.put(name, configs);
+            }
+            if (configs.containsKey(config)) {
+                throw new UnsupportedException("duplicate " + type + "/" + name);
+            }
+            configs.put(config, new RawValue(getText(element), isFloat));
+        }
+    }
+
+    private static String getText(Element element) throws UnsupportedException {
+        final StringBuilder sb = new StringBuilder();
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            switch (node.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    sb.append(node.getNodeValue());
+                    break;
+                case Node.COMMENT_NODE:
+                    break;
+                default:
+                    // styled strings and xliff tags
+                    throw new UnsupportedException("markup in " + element.getAttribute("name"));
+            }
+        }
+        return sb.toString();
+    }
+
+    private ResourceTableWriter.Value toValue(String type, String name, RawValue raw,
+            String packageName, Map<String, Integer> ids, List<String> strings,
+            Map<String, Integer> stringIndex) throws UnsupportedException {
+        final String text = raw.text.trim();
+        ResourceTableWriter.Value value = null;
+        if (text.startsWith("@")) {
+            value = parseReference(text, packageName, ids);
+        } else if (text.startsWith("?")) {
+            value = null;
+        } else if (raw.isFloat) {
+            value = parseFloat(text);
+        } else if (type.equals("string")) {
+            final String s = collectString(raw.text);
+            if (s != null && ResourceChunkBuffer.fitsStringPool(s)) {
+                Integer index = stringIndex.get(s);
+                if (index == null) {
+                    index = strings.size();
+                    stringIndex.put(s, index);
+                    strings.add(s);
+                }
+                value = new ResourceTableWriter.Value(ResourceTableWriter.TYPE_STRING, index);
+            }
+        } else if (type.equals("bool")) {
+            value = parseBoolean(text);
+        } else if (type.equals("integer")) {
+            value = parseInteger(text);
+        } else if (type.equals("dimen")) {
+            value = parseDimension(text);
+        } else {
+            // color and drawable
+            value = parseColor(text);
+        }
+        if (value == null) {
+            throw new UnsupportedException(type + "/" + name + " = " + text);
+        }
+        return value;
+    }
+
+    private ResourceTableWriter.Value parseReference(String text, String packageName,
+            Map<String, Integer> ids) {
+        final Matcher m = REFERENCE.matcher(text);
+        if (!m.matches()) {
+            return null;
+        }
+        final String pkg = m.group(2);
+        final String type = m.group(3);
+        final String name = m.group(4);
+        int id = 0;
+        if (pkg == null || pkg.equals(packageName)) {
+            final Integer local = ids.get(type + "/" + name);
+            id = local != null ? local : 0;
+        } else if (pkg.equals("android")) {
+            id = mResolver.getFrameworkIdentifier(type, name);
+        }
+        return id != 0 ? new ResourceTableWriter.Value(ResourceTableWriter.TYPE_REFERENCE, id)
+                : null;
+    }
+
+    private static ResourceTableWriter.Value parseBoolean(String text) {
+        if (text.equals("true")) {
+            return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_BOOLEAN, -1);
+        } else if (text.equals("false")) {
+            return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_BOOLEAN, 0);
+        }
+        return null;
+    }
+
+    private static ResourceTableWriter.Value parseInteger(String text) {
+        Matcher m = INT_HEX.matcher(text);
+        if (m.matches()) {
+            return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_HEX,
+                    (int) Long.parseLong(m.group(1), 16));
+        }
+        if (INT_DEC.matcher(text).matches()) {
+            try {
+                return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_DEC,
+                        Integer.parseInt(text));
+            } catch (NumberFormatException e) {
+                // out of range
+            }
+        }
+        return null;
+    }
+
+    private static ResourceTableWriter.Value parseFloat(String text) {
+        final Matcher m = FLOAT.matcher(text);
+        if (!m.matches() || !m.group(2).isEmpty()) {
+            return null;
+        }
+        // aapt goes through strtod, keep the double rounding
+        final float f = (float) Double.parseDouble(m.group(1));
+        return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_FLOAT,
+                Float.floatToIntBits(f));
+    }
+
+    static ResourceTableWriter.Value parseDimension(String text) {
+        final Matcher m = FLOAT.matcher(text);
+        if (!m.matches()) {
+            return null;
+        }
+        String unit = m.group(2);
+        if (unit.equals("dip")) {
+            unit = "dp";
+        }
+        final int unitIndex = Arrays.asList(DIMENSION_UNITS).indexOf(unit);
+        if (unitIndex < 0) {
+            return null;
+        }
+        float value = (float) Double.parseDouble(m.group(1));
+        final boolean negative = value < 0;
+        if (negative) {
+            value = -value;
+        }
+        // same encoding as ResourceTypes.cpp computeComplex()
+        final long bits = (long) (value * (1 << 23) + .5f);
+        final int radix;
+        final int shift;
+        if ((bits & 0x7fffffL) == 0) {
+            radix = RADIX_23P0;
+            shift = 23;
+        } else if ((bits & 0xffffffffff800000L) == 0) {
+            radix = RADIX_0P23;
+            shift = 0;
+        } else if ((bits & 0xffffffff80000000L) == 0) {
+            radix = RADIX_8P15;
+            shift = 8;
+        } else if ((bits & 0xffffff8000000000L) == 0) {
+            radix = RADIX_16P7;
+            shift = 16;
+        } else {
+            radix = RADIX_23P0;
+            shift = 23;
+        }
+        int mantissa = (int) ((bits >> shift) & 0xffffff);
+        if (negative) {
+            mantissa = (-mantissa) & 0xffffff;
+        }
+        return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_DIMENSION,
+                (mantissa << 8) | (radix << 4) | unitIndex);
+    }
+
+    static ResourceTableWriter.Value parseColor(String text) {
+        final Matcher m = COLOR.matcher(text);
+        if (!m.matches()) {
+            return null;
+        }
+        final String hex = m.group(1);
+        final int[] d = new int[hex.length()];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = Character.digit(hex.charAt(i), 16);
+        }
+        switch (d.length) {
+            case 3:
+                return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_COLOR_RGB4,
+                        0xff000000 | (d[0] << 20) | (d[0] << 16) | (d[1] << 12) | (d[1] << 8)
+                                | (d[2] << 4) | d[2]);
+            case 4:
+                return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_COLOR_ARGB4,
+                        (d[0] << 28) | (d[0] << 24) | (d[1] << 20) | (d[1] << 16)
+                                | (d[2] << 12) | (d[2] << 8) | (d[3] << 4) | d[3]);
+            case 6:
+                return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_COLOR_RGB8,
+                        0xff000000 | Integer.parseInt(hex, 16));
+            case 8:
+                return new ResourceTableWriter.Value(ResourceTableWriter.TYPE_INT_COLOR_ARGB8,
+                        (int) Long.parseLong(hex, 16));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Applies the aapt rules for string values: unquoted whitespace runs collapse to one
+     * space and are trimmed at both ends, double quotes preserve whitespace and backslash
+     * escapes are resolved.
+     *
+     * @return the string, or null for input aapt would reject (an unescaped apostrophe)
+     */
+    static String collectString(String text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        boolean quoted = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!quoted && isSpace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+            }
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\'' && !quoted) {
+                return null;
+            } else if (c == '\\') {
+                if (++i >= text.length()) {
+                    break;
+                }
+                c = text.charAt(i);
+                switch (c) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'u':
+                        if (i + 4 >= text.length()) {
+                            return null;
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        // \@ \? \# \" \' \\ and anything else stand for themselves
+                        sb.append(c);
+                        break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return quoted ? null : sb.toString();
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u000b' || c == '\f';
+    }
+
+    private static byte[] writeApk(byte[] manifest, byte[] table) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(table.length + 4096);
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.write(manifest);
+            zip.closeEntry();
+
+            // stored, so the table can be mapped straight from the APK
+            final ZipEntry entry = new ZipEntry("resources.arsc");
+            final CRC32 crc = new CRC32();
+            crc.update(table);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(table.length);
+            entry.setCompressedSize(table.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(table);
+            zip.closeEntry();
+        }
+        return out.toByteArray();
+    }
+}
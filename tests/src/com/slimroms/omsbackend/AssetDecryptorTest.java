@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.slimroms.omsbackend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class AssetDecryptorTest {
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void parallelMatchesStreamAtChunkMultiple() throws Exception {
+        // PKCS5 pads one byte short of a block up to the block
+        assertParallelMatchesStream(5 * AssetDecryptor.CHUNK_SIZE - 1,
+                5 * AssetDecryptor.CHUNK_SIZE);
+    }
+
+    @Test
+    public void parallelMatchesStreamAboveThreshold() throws Exception {
+        // the last chunk only holds the padding block
+        assertParallelMatchesStream((int) AssetDecryptor.PARALLEL_THRESHOLD,
+                AssetDecryptor.PARALLEL_THRESHOLD + 16);
+    }
+
+    @Test
+    public void parallelMatchesStreamWithPartialChunk() throws Exception {
+        assertParallelMatchesStream((int) AssetDecryptor.PARALLEL_THRESHOLD + 1000,
+                AssetDecryptor.PARALLEL_THRESHOLD + 1008);
+    }
+
+    private void assertParallelMatchesStream(int plainSize, long cipherSize) throws Exception {
+        final byte[] key = new byte[16];
+        final byte[] iv = new byte[16];
+        final byte[] plain = new byte[plainSize];
+        mRandom.nextBytes(key);
+        mRandom.nextBytes(iv);
+        mRandom.nextBytes(plain);
+
+        final Cipher encrypt = Cipher.getInstance(TRANSFORMATION);
+        encrypt.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                new IvParameterSpec(iv));
+        final byte[] encrypted = encrypt.doFinal(plain);
+        assertEquals(cipherSize, encrypted.length);
+
+        final Cipher decrypt = Cipher.getInstance(TRANSFORMATION);
+        decrypt.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+                new IvParameterSpec(iv));
+        final byte[] expected;
+        try (InputStream is = new CipherInputStream(
+                new ByteArrayInputStream(encrypted), decrypt)) {
+            expected = IOUtils.toByteArray(is);
+        }
+
+        final File dest = mTemp.newFile();
+        try (FileOutputStream os = new FileOutputStream(dest)) {
+            AssetDecryptor.get(key, iv).decryptParallel(
+                    new ByteArrayInputStream(encrypted), os.getChannel());
+        }
+        final byte[] actual = FileUtils.readFileToByteArray(dest);
+        assertEquals(plain.length, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+}
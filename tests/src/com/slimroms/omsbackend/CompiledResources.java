@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads compiled resources back, so the output of the in-process compiler can be compared
+ * with the output of aapt by resource name rather than byte by byte.
+ *
+ * The reference files in {@code tests/resources/values-overlay.aapt} were produced from
+ * {@code tests/resources/values-overlay} with
+ * <pre>
+ * aapt package -M AndroidManifest.xml -S res -I android.jar -F overlay.apk
+ * </pre>
+ * and the ones in {@code values-overlay.aapt2} with
+ * <pre>
+ * aapt2 compile --dir res -o res.zip
+ * aapt2 link --manifest AndroidManifest.xml -I android.jar -o overlay.apk res.zip
+ * </pre>
+ */
+final class CompiledResources {
+
+    // attributes aapt adds to every manifest
+    private static final Set<String> GENERATED_ATTRIBUTES = new LinkedHashSet<>(Arrays.asList(
+            "compileSdkVersion", "compileSdkVersionCodename",
+            "platformBuildVersionCode", "platformBuildVersionName"));
+
+    private static final int UTF8_FLAG = 1 << 8;
+    // the part of ResTable_config the compiler writes, after its size
+    private static final int CONFIG_START = 4;
+    private static final int CONFIG_END = ResourceConfig.SIZE;
+
+    private CompiledResources() {
+    }
+
+    static File getFixture(String name) {
+        try {
+            return new File(CompiledResources.class.getResource("/" + name).toURI());
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static byte[] readFixture(String name) throws IOException {
+        try (InputStream is = CompiledResources.class.getResourceAsStream("/" + name)) {
+            if (is == null) {
+                throw new IOException("missing fixture " + name);
+            }
+            return readFully(is);
+        }
+    }
+
+    /**
+     * @return the contents of the APK entries, by name
+     */
+    static Map<String, byte[]> unzip(byte[] apk) throws IOException {
+        final Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(apk))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), readFully(zip));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the chunks of the given type directly below the table and its packages, in
+     *         file order
+     */
+    static List<byte[]> findChunks(byte[] table, int type) {
+        final List<byte[]> chunks = new ArrayList<>();
+        findChunks(table, headerSize(table, 0), getInt(table, 4), type, chunks);
+        return chunks;
+    }
+
+    private static void findChunks(byte[] data, int start, int end, int type,
+            List<byte[]> out) {
+        for (int off = start; off < end; off += getInt(data, off + 4)) {
+            final int chunkType = getShort(data, off);
+            if (chunkType == type) {
+                out.add(Arrays.copyOfRange(data, off, off + getInt(data, off + 4)));
+            }
+            if (chunkType == ResourceChunkBuffer.RES_TABLE_PACKAGE_TYPE) {
+                findChunks(data, off + headerSize(data, off), off + getInt(data, off + 4),
+                        type, out);
+            }
+        }
+    }
+
+    /**
+     * Decodes a ResStringPool chunk, UTF-8 or UTF-16.
+     */
+    static List<String> readStringPool(byte[] data, int off) {
+        final int count = getInt(data, off + 8);
+        final int flags = getInt(data, off + 16);
+        final int stringsStart = off + getInt(data, off + 20);
+        final int offsets = off + headerSize(data, off);
+        final List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int pos = stringsStart + getInt(data, offsets + i * 4);
+            if ((flags & UTF8_FLAG) != 0) {
+                // character count, then byte count
+                pos += (data[pos] & 0x80) != 0 ? 2 : 1;
+                int length = data[pos++] & 0xff;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7f) << 8) | (data[pos++] & 0xff);
+                }
+                strings.add(new String(data, pos, length, StandardCharsets.UTF_8));
+            } else {
+                int length = getShort(data, pos);
+                pos += 2;
+                if ((length & 0x8000) != 0) {
+                    length = ((length & 0x7fff) << 16) | getShort(data, pos);
+                    pos += 2;
+                }
+                strings.add(new String(data, pos, length * 2, StandardCharsets.UTF_16LE));
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * @return a readable key for the part of a ResTable_config the compiler writes
+     */
+    static String configKey(byte[] data, int off) {
+        final int size = getInt(data, off);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = CONFIG_START; i < size; i++) {
+            final int b = data[off + i] & 0xff;
+            if (i >= CONFIG_END && b != 0) {
+                throw new AssertionError("config field at " + i + " is not written");
+            }
+            if (i < CONFIG_END) {
+                sb.append(String.format("%02x", b));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the configs of every type chunk of the table
+     */
+    static Set<String> readConfigs(byte[] table) {
+        final Set<String> configs = new LinkedHashSet<>();
+        for (byte[] type : findChunks(table, ResourceChunkBuffer.RES_TABLE_TYPE_TYPE)) {
+            configs.add(configKey(type, 20));
+        }
+        return configs;
+    }
+
+    /**
+     * Decodes a resources.arsc with one package and simple values only.
+     *
+     * @return {@code type/name} and {@code type/name [config]} mapped to the typeSpec flags
+     *         and the values. Package-local references are resolved to names and strings to
+     *         their text, as ids and pool indexes differ between compilers.
+     */
+    static Map<String, String> readTable(byte[] table) {
+        final List<String> values = readStringPool(table, headerSize(table, 0));
+        final int pkg = headerSize(table, 0) + getInt(table, headerSize(table, 0) + 4);
+        final int packageId = getInt(table, pkg + 8);
+        final List<String> typeNames = readStringPool(table, pkg + getInt(table, pkg + 268));
+        final List<String> keys = readStringPool(table, pkg + getInt(table, pkg + 276));
+
+        // first pass for the names of local ids, second for the values
+        final Map<Integer, String> names = new HashMap<>();
+        final Map<String, String> out = new TreeMap<>();
+        for (int pass = 0; pass < 2; pass++) {
+            final int end = pkg + getInt(table, pkg + 4);
+            for (int off = pkg + headerSize(table, pkg); off < end;
+                    off += getInt(table, off + 4)) {
+                final int chunkType = getShort(table, off);
+                if (chunkType == ResourceChunkBuffer.RES_TABLE_TYPE_SPEC_TYPE && pass == 1) {
+                    readSpec(table, off, typeNames, names, packageId, out);
+                } else if (chunkType == ResourceChunkBuffer.RES_TABLE_TYPE_TYPE) {
+                    readType(table, off, packageId, typeNames, keys, values, names,
+                            pass == 0 ? null : out);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void readSpec(byte[] data, int off, List<String> typeNames,
+            Map<Integer, String> names, int packageId, Map<String, String> out) {
+        final int typeId = data[off + 8] & 0xff;
+        final int count = getInt(data, off + 12);
+        final int flags = off + headerSize(data, off);
+        for (int i = 0; i < count; i++) {
+            final String name = names.get((packageId << 24) | (typeId << 16) | i);
+            out.put(name, String.format("flags=0x%08x", getInt(data, flags + i * 4)));
+        }
+    }
+
+    private static void readType(byte[] data, int off, int packageId, List<String> typeNames,
+            List<String> keys, List<String> values, Map<Integer, String> names,
+            Map<String, String> out) {
+        final int typeId = data[off + 8] & 0xff;
+        final int count = getInt(data, off + 12);
+        final int entries = off + getInt(data, off + 16);
+        final String config = configKey(data, off + 20);
+        final int offsets = off + headerSize(data, off);
+        for (int i = 0; i < count; i++) {
+            final int entryOffset = getInt(data, offsets + i * 4);
+            if (entryOffset == ResourceChunkBuffer.NO_INDEX) {
+                continue;
+            }
+            final int entry = entries + entryOffset;
+            if ((getShort(data, entry + 2) & 1) != 0) {
+                throw new AssertionError("complex entry in " + typeNames.get(typeId - 1));
+            }
+            final String name = typeNames.get(typeId - 1) + "/"
+                    + keys.get(getInt(data, entry + 4));
+            if (out == null) {
+                names.put((packageId << 24) | (typeId << 16) | i, name);
+                continue;
+            }
+            final int value = entry + getShort(data, entry);
+            final int dataType = data[value + 3] & 0xff;
+            final int d = getInt(data, value + 4);
+            final String text;
+            if (dataType == ResourceTableWriter.TYPE_STRING) {
+                text = "\"" + values.get(d) + "\"";
+            } else if (dataType == ResourceTableWriter.TYPE_REFERENCE
+                    && (d >>> 24) == packageId) {
+                text = "@" + names.get(d);
+            } else {
+                text = String.format("0x%02x 0x%08x", dataType, d);
+            }
+            out.put(name + " [" + config + "]", text);
+        }
+    }
+
+    /**
+     * Decodes a binary XML document into an indented tree of elements and attributes,
+     * leaving out line numbers and the attributes aapt generates.
+     */
+    static String readXml(byte[] xml) {
+        List<String> strings = null;
+        int[] resourceIds = new int[0];
+        final StringBuilder sb = new StringBuilder();
+        int depth = 0;
+        for (int off = headerSize(xml, 0); off < getInt(xml, 4); off += getInt(xml, off + 4)) {
+            final int chunkType = getShort(xml, off);
+            final int body = off + headerSize(xml, off);
+            switch (chunkType) {
+                case ResourceChunkBuffer.RES_STRING_POOL_TYPE:
+                    strings = readStringPool(xml, off);
+                    break;
+                case ResourceChunkBuffer.RES_XML_RESOURCE_MAP_TYPE:
+                    resourceIds = new int[(getInt(xml, off + 4) - headerSize(xml, off)) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = getInt(xml, body + i * 4);
+                    }
+                    break;
+                case ResourceChunkBuffer.RES_XML_START_NAMESPACE_TYPE:
+                    sb.append("N: ").append(strings.get(getInt(xml, body)))
+                            .append('=').append(strings.get(getInt(xml, body + 4)))
+                            .append('\n');
+                    break;
+                case ResourceChunkBuffer.RES_XML_START_ELEMENT_TYPE:
+                    indent(sb, depth++);
+                    sb.append("E: ").append(strings.get(getInt(xml, body + 4))).append('\n');
+                    final int attrStart = body + getShort(xml, body + 8);
+                    final int attrSize = getShort(xml, body + 10);
+                    final int attrCount = getShort(xml, body + 12);
+                    for (int i = 0; i < attrCount; i++) {
+                        final int attr = attrStart + i * attrSize;
+                        final int ns = getInt(xml, attr);
+                        final int nameIndex = getInt(xml, attr + 4);
+                        final String name = strings.get(nameIndex);
+                        if (GENERATED_ATTRIBUTES.contains(name)) {
+                            continue;
+                        }
+                        final int dataType = xml[attr + 15] & 0xff;
+                        final int d = getInt(xml, attr + 16);
+                        indent(sb, depth);
+                        sb.append("A: ");
+                        if (ns != ResourceChunkBuffer.NO_INDEX) {
+                            sb.append('{').append(strings.get(ns)).append('}');
+                        }
+                        sb.append(name);
+                        if (nameIndex < resourceIds.length) {
+                            sb.append(String.format("(0x%08x)", resourceIds[nameIndex]));
+                        }
+                        sb.append('=');
+                        if (dataType == ResourceTableWriter.TYPE_STRING) {
+                            sb.append('"').append(strings.get(d)).append('"');
+                        } else {
+                            sb.append(String.format("0x%02x 0x%08x", dataType, d));
+                        }
+                        sb.append('\n');
+                    }
+                    break;
+                case ResourceChunkBuffer.RES_XML_END_ELEMENT_TYPE:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void indent(StringBuilder sb, int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+    }
+
+    static int headerSize(byte[] data, int off) {
+        return getShort(data, off + 2);
+    }
+
+    static int getShort(byte[] data, int off) {
+        return (data[off] & 0xff) | (data[off + 1] & 0xff) << 8;
+    }
+
+    static int getInt(byte[] data, int off) {
+        return (data[off] & 0xff) | (data[off + 1] & 0xff) << 8
+                | (data[off + 2] & 0xff) << 16 | (data[off + 3] & 0xff) << 24;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
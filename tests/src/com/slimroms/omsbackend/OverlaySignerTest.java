@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.slimroms.omsbackend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class OverlaySignerTest {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final byte[] APK_SIG_BLOCK_MAGIC =
+            "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private X509Certificate mCertificate;
+    private OverlaySigner mSigner;
+
+    @Before
+    public void setUp() throws Exception {
+        final PrivateKey key = KeyFactory.getInstance("RSA").generatePrivate(
+                new PKCS8EncodedKeySpec(CompiledResources.readFixture("signer/testkey.pk8")));
+        mCertificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(
+                        CompiledResources.readFixture("signer/testkey.x509.pem")));
+        mSigner = new OverlaySigner(key, mCertificate);
+    }
+
+    @Test
+    public void fileAndMemorySigningMatch() throws Exception {
+        final byte[] apk = createApk();
+        final File file = mTemp.newFile("overlay.apk");
+        FileUtils.writeByteArrayToFile(file, apk);
+
+        mSigner.sign(file);
+        assertArrayEquals(mSigner.sign(apk), FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void signatureVerifies() throws Exception {
+        final byte[] apk = createApk();
+        final byte[] signed = mSigner.sign(apk);
+        final int cdOffset = getCentralDirectoryOffset(signed);
+
+        // APK signing block: size, (id, value) pairs, size again, magic
+        assertArrayEquals(APK_SIG_BLOCK_MAGIC, Arrays.copyOfRange(signed,
+                cdOffset - APK_SIG_BLOCK_MAGIC.length, cdOffset));
+        final ByteBuffer footer = wrap(signed, cdOffset - 24, 8);
+        final int blockOffset = (int) (cdOffset - footer.getLong() - 8);
+        final ByteBuffer block = wrap(signed, blockOffset, cdOffset - blockOffset);
+        assertEquals(block.getLong(0), block.getLong(block.limit() - 24));
+        final ByteBuffer pairs = wrap(signed, blockOffset + 8, cdOffset - 24 - blockOffset - 8);
+        ByteBuffer v2Block = null;
+        while (pairs.hasRemaining()) {
+            final int pairSize = (int) pairs.getLong();
+            final int id = pairs.getInt();
+            final ByteBuffer value = slice(pairs, pairSize - 4);
+            if (id == SIGNATURE_SCHEME_V2_BLOCK_ID) {
+                v2Block = value;
+            }
+        }
+        assertNotNull(v2Block);
+
+        final ByteBuffer signers = lengthPrefixed(v2Block);
+        final ByteBuffer signer = lengthPrefixed(signers);
+        assertTrue(!signers.hasRemaining());
+        final ByteBuffer signedData = lengthPrefixed(signer);
+        final ByteBuffer signatures = lengthPrefixed(signer);
+        final ByteBuffer publicKey = lengthPrefixed(signer);
+        assertArrayEquals(mCertificate.getPublicKey().getEncoded(), bytes(publicKey));
+
+        // the signature covers the signed data as it is stored
+        final byte[] signedDataBytes = bytes(signedData.duplicate());
+        final ByteBuffer signature = lengthPrefixed(signatures);
+        assertEquals(SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256, signature.getInt());
+        final Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(mCertificate.getPublicKey());
+        verifier.update(signedDataBytes);
+        assertTrue(verifier.verify(bytes(lengthPrefixed(signature))));
+
+        final ByteBuffer digests = lengthPrefixed(signedData);
+        final ByteBuffer digest = lengthPrefixed(digests);
+        assertEquals(SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256, digest.getInt());
+        final ByteBuffer certificates = lengthPrefixed(signedData);
+        assertArrayEquals(mCertificate.getEncoded(), bytes(lengthPrefixed(certificates)));
+
+        // the EOCD is digested with the central directory offset before the signing block
+        final int eocdOffset = signed.length - 22;
+        final byte[] eocd = Arrays.copyOfRange(signed, eocdOffset, signed.length);
+        ByteBuffer.wrap(eocd).order(ByteOrder.LITTLE_ENDIAN).putInt(16, blockOffset);
+        assertArrayEquals(contentDigest(
+                Arrays.copyOfRange(signed, 0, blockOffset),
+                Arrays.copyOfRange(signed, cdOffset, eocdOffset),
+                eocd), bytes(lengthPrefixed(digest)));
+    }
+
+    @Test
+    public void signedApkIsRejected() throws Exception {
+        try {
+            mSigner.sign(mSigner.sign(createApk()));
+            fail("signed twice");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return a small APK whose entries span more than one digest chunk
+     */
+    private static byte[] createApk() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.write("<manifest package=\"com.example.overlay\"/>"
+                    .getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            final byte[] payload = new byte[CHUNK_SIZE + CHUNK_SIZE / 2];
+            new Random(42).nextBytes(payload);
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            final ZipEntry entry = new ZipEntry("res/raw/payload.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(payload.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(payload);
+            zip.closeEntry();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] contentDigest(byte[]... sections) throws Exception {
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        final ByteArrayOutputStream chunkDigests = new ByteArrayOutputStream();
+        int count = 0;
+        for (byte[] section : sections) {
+            for (int pos = 0; pos < section.length; pos += CHUNK_SIZE) {
+                final int length = Math.min(CHUNK_SIZE, section.length - pos);
+                md.update((byte) 0xa5);
+                md.update(intBytes(length));
+                md.update(section, pos, length);
+                chunkDigests.write(md.digest());
+                count++;
+            }
+        }
+        md.update((byte) 0x5a);
+        md.update(intBytes(count));
+        md.update(chunkDigests.toByteArray());
+        return md.digest();
+    }
+
+    private static int getCentralDirectoryOffset(byte[] apk) {
+        // the test APKs have no comment
+        final ByteBuffer eocd = wrap(apk, apk.length - 22, 22);
+        assertEquals(0x06054b50, eocd.getInt(0));
+        return eocd.getInt(16);
+    }
+
+    private static ByteBuffer lengthPrefixed(ByteBuffer buffer) {
+        return slice(buffer, buffer.getInt());
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        final ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static ByteBuffer wrap(byte[] data, int offset, int length) {
+        return ByteBuffer.wrap(data, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ResourceChunkBufferTest {
+
+    @Test
+    public void writesLittleEndian() {
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        b.putByte(0x01);
+        b.putShort(0x1234);
+        b.putInt(0x89abcdef);
+        assertArrayEquals(new byte[] {
+                0x01, 0x34, 0x12, (byte) 0xef, (byte) 0xcd, (byte) 0xab, (byte) 0x89
+        }, b.toByteArray());
+    }
+
+    @Test
+    public void endChunkWritesTheSize() {
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        b.putInt(0);
+        final int chunk = b.startChunk(ResourceChunkBuffer.RES_XML_TYPE, 8);
+        b.putByte(1);
+        b.align4();
+        b.endChunk(chunk);
+        final byte[] data = b.toByteArray();
+        assertEquals(16, data.length);
+        assertEquals(ResourceChunkBuffer.RES_XML_TYPE, CompiledResources.getShort(data, 4));
+        assertEquals(8, CompiledResources.headerSize(data, 4));
+        assertEquals(12, CompiledResources.getInt(data, 8));
+    }
+
+    @Test
+    public void stringPoolsMatchAapt2() throws Exception {
+        // aapt2 writes UTF-8 pools without styles, like the compiler
+        final byte[] table = CompiledResources.readFixture("values-overlay.aapt2/resources.arsc");
+        final List<byte[]> pools =
+                CompiledResources.findChunks(table, ResourceChunkBuffer.RES_STRING_POOL_TYPE);
+        int utf8 = 0;
+        for (byte[] pool : pools) {
+            if ((CompiledResources.getInt(pool, 16) & (1 << 8)) == 0) {
+                continue;
+            }
+            final ResourceChunkBuffer b = new ResourceChunkBuffer();
+            b.putStringPool(CompiledResources.readStringPool(pool, 0));
+            assertArrayEquals(pool, b.toByteArray());
+            utf8++;
+        }
+        // the values, with non-ASCII text, and the keys
+        assertEquals(2, utf8);
+    }
+
+    @Test
+    public void emptyStringPool() {
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        b.putStringPool(Arrays.<String>asList());
+        final byte[] data = b.toByteArray();
+        assertEquals(28, data.length);
+        assertEquals(0, CompiledResources.getInt(data, 8));
+        assertEquals(0, CompiledResources.getInt(data, 20));
+    }
+
+    @Test
+    public void longStringsUseTwoByteLengths() {
+        final char[] chars = new char[200];
+        Arrays.fill(chars, 'x');
+        final String s = new String(chars);
+        final ResourceChunkBuffer b = new ResourceChunkBuffer();
+        b.putStringPool(Arrays.asList(s, "\u00e9"));
+        assertEquals(Arrays.asList(s, "\u00e9"),
+                CompiledResources.readStringPool(b.toByteArray(), 0));
+    }
+
+    @Test
+    public void fitsStringPool() {
+        assertTrue(ResourceChunkBuffer.fitsStringPool("Settings"));
+        final char[] chars = new char[0x8000];
+        Arrays.fill(chars, 'x');
+        assertFalse(ResourceChunkBuffer.fitsStringPool(new String(chars)));
+        // fits in characters, not in UTF-8 bytes
+        Arrays.fill(chars, 0, 0x4000, '\u00e9');
+        assertFalse(ResourceChunkBuffer.fitsStringPool(new String(chars, 0, 0x4000)));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class ResourceConfigTest {
+
+    // the qualifiers of the values-overlay fixture
+    private static final String[] FIXTURE_QUALIFIERS = {
+            "", "-land", "-v21", "-night-v8", "-sw600dp-v13", "-de-rDE"
+    };
+
+    @Test
+    public void encodingMatchesAapt() throws Exception {
+        final Set<String> expected = CompiledResources.readConfigs(
+                CompiledResources.readFixture("values-overlay.aapt/resources.arsc"));
+        final Set<String> actual = new LinkedHashSet<>();
+        for (String qualifiers : FIXTURE_QUALIFIERS) {
+            final byte[] bytes = ResourceConfig.parse(qualifiers).toBytes();
+            assertEquals(ResourceConfig.SIZE, bytes.length);
+            assertEquals(ResourceConfig.SIZE, CompiledResources.getInt(bytes, 0));
+            actual.add(CompiledResources.configKey(bytes, 0));
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void qualifiersImplyMinimumVersion() {
+        // AaptConfig::applyVersionForCompatibility()
+        assertEquals(ResourceConfig.parse("-night-v8"), ResourceConfig.parse("-night"));
+        assertEquals(ResourceConfig.parse("-sw600dp-v13"), ResourceConfig.parse("-sw600dp"));
+        assertEquals(ResourceConfig.parse("-w820dp-v13"), ResourceConfig.parse("-w820dp"));
+        assertEquals(ResourceConfig.parse("-ldrtl-v17"), ResourceConfig.parse("-ldrtl"));
+        assertEquals(ResourceConfig.parse("-xhdpi-v4"), ResourceConfig.parse("-xhdpi"));
+        assertEquals(ResourceConfig.parse("-anydpi-v21"), ResourceConfig.parse("-anydpi"));
+        // an explicit higher version is kept
+        assertEquals(ResourceConfig.parse("-night-v23"), ResourceConfig.parse("-v23-night"));
+        assertNotEquals(ResourceConfig.parse("-night"), ResourceConfig.parse("-night-v23"));
+        assertEquals(ResourceConfig.DEFAULT, ResourceConfig.parse(""));
+    }
+
+    @Test
+    public void diffMask() {
+        assertEquals(0, ResourceConfig.DEFAULT.getDiffMask());
+        assertEquals(0x0080, ResourceConfig.parse("-land").getDiffMask());
+        assertEquals(0x0004, ResourceConfig.parse("-de-rDE").getDiffMask());
+        assertEquals(0x1400, ResourceConfig.parse("-night").getDiffMask());
+        assertEquals(0x2400, ResourceConfig.parse("-sw600dp").getDiffMask());
+    }
+
+    @Test
+    public void rejectsUnsupportedQualifiers() {
+        final String[] unsupported = {
+                "land", "-mcc310", "-rUS", "-en-rUS-foo", "-v70000", "-sw70000dp", "-car",
+                "-b+sr+Latn"
+        };
+        for (String qualifiers : unsupported) {
+            try {
+                ResourceConfig.parse(qualifiers);
+                fail("accepted " + qualifiers);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
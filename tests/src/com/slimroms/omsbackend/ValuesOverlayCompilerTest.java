@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ * Copyright (C) 2017 Victor Lapin
+ * Copyright (C) 2017 Griffin Millender
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.slimroms.omsbackend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class ValuesOverlayCompilerTest {
+
+    private static final String FIXTURE = "values-overlay";
+
+    // the framework resources the fixture refers to, public ids
+    private static final Map<String, Integer> FRAMEWORK = new HashMap<>();
+    static {
+        FRAMEWORK.put("attr/name", 0x01010003);
+        FRAMEWORK.put("attr/targetPackage", 0x01010021);
+        FRAMEWORK.put("attr/value", 0x01010024);
+        FRAMEWORK.put("color/white", 0x0106000b);
+        FRAMEWORK.put("dimen/app_icon_size", 0x01050000);
+    }
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private ValuesOverlayCompiler mCompiler;
+
+    @Before
+    public void setUp() {
+        mCompiler = new ValuesOverlayCompiler(new ValuesOverlayCompiler.ReferenceResolver() {
+            @Override
+            public int getFrameworkIdentifier(String type, String name) {
+                final Integer id = FRAMEWORK.get(type + "/" + name);
+                return id != null ? id : 0;
+            }
+        }, null);
+    }
+
+    @Test
+    public void resourceTableMatchesAapt() throws Exception {
+        final Map<String, byte[]> apk = compileFixture();
+        assertEquals(
+                CompiledResources.readTable(
+                        CompiledResources.readFixture(FIXTURE + ".aapt/resources.arsc")),
+                CompiledResources.readTable(apk.get("resources.arsc")));
+    }
+
+    @Test
+    public void manifestMatchesAapt() throws Exception {
+        final Map<String, byte[]> apk = compileFixture();
+        assertEquals(
+                CompiledResources.readXml(
+                        CompiledResources.readFixture(FIXTURE + ".aapt/AndroidManifest.xml")),
+                CompiledResources.readXml(apk.get("AndroidManifest.xml")));
+    }
+
+    @Test
+    public void resourceTableIsStored() throws Exception {
+        final byte[] apk = mCompiler.compile(CompiledResources.getFixture(FIXTURE).getPath());
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(apk))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().equals("resources.arsc")) {
+                    assertEquals(ZipEntry.STORED, entry.getMethod());
+                    return;
+                }
+            }
+        }
+        throw new AssertionError("no resources.arsc");
+    }
+
+    @Test
+    public void unsupportedOverlaysAreLeftToAapt() throws Exception {
+        assertNull(compile("drawable/icon.xml", "<vector/>"));
+        assertNull(compile("values/styles.xml",
+                "<resources><style name=\"Theme\"/></resources>"));
+        assertNull(compile("values/strings.xml",
+                "<resources><string name=\"s\">a <b>bold</b> word</string></resources>"));
+        assertNull(compile("values/colors.xml",
+                "<resources><color name=\"c\">?android:attr/colorAccent</color></resources>"));
+        assertNull(compile("values/colors.xml",
+                "<resources><color name=\"c\">@color/missing</color></resources>"));
+        assertNull(compile("values-mcc310/bools.xml",
+                "<resources><bool name=\"b\">true</bool></resources>"));
+        assertNotNull(compile("values/bools.xml",
+                "<resources><bool name=\"b\">true</bool></resources>"));
+    }
+
+    @Test
+    public void parseDimension() {
+        // encodings from the aapt output of the fixture
+        assertValue(0x05, 0x00001001, ValuesOverlayCompiler.parseDimension("16dp"));
+        assertValue(0x05, 0x00001801, ValuesOverlayCompiler.parseDimension(" 24dp "));
+        assertValue(0x05, 0x01400021, ValuesOverlayCompiler.parseDimension("2.5dp"));
+        assertValue(0x05, 0xfffffc01, ValuesOverlayCompiler.parseDimension("-4dip"));
+        assertValue(0x05, 0x2aa99330, ValuesOverlayCompiler.parseDimension("0.3333px"));
+        assertValue(0x05, 0x02694012, ValuesOverlayCompiler.parseDimension("1234.5sp"));
+        assertValue(0x05, 0x40000034, ValuesOverlayCompiler.parseDimension("0.5in"));
+        assertValue(0x05, 0x0020c535, ValuesOverlayCompiler.parseDimension("0.001mm"));
+        assertValue(0x05, 0x00000c03, ValuesOverlayCompiler.parseDimension("12pt"));
+        assertNull(ValuesOverlayCompiler.parseDimension("16"));
+        assertNull(ValuesOverlayCompiler.parseDimension("16em"));
+        assertNull(ValuesOverlayCompiler.parseDimension("dp"));
+    }
+
+    @Test
+    public void parseColor() {
+        assertValue(0x1f, 0xffffffff, ValuesOverlayCompiler.parseColor("#fff"));
+        assertValue(0x1e, 0x88000000, ValuesOverlayCompiler.parseColor("#8000"));
+        assertValue(0x1d, 0xffff4081, ValuesOverlayCompiler.parseColor("#ff4081"));
+        assertValue(0x1c, 0xcc202020, ValuesOverlayCompiler.parseColor("#cc202020"));
+        assertNull(ValuesOverlayCompiler.parseColor("#12345"));
+        assertNull(ValuesOverlayCompiler.parseColor("#ggg"));
+        assertNull(ValuesOverlayCompiler.parseColor("red"));
+    }
+
+    @Test
+    public void collectString() {
+        assertEquals("several words on lines",
+                ValuesOverlayCompiler.collectString("  several\n    words   on\n lines  "));
+        assertEquals("  keep   this   ",
+                ValuesOverlayCompiler.collectString("\"  keep   this   \""));
+        assertEquals("Tab\there, line\nbreak, @at, ?question, it's \"quoted\" \\",
+                ValuesOverlayCompiler.collectString(
+                        "Tab\\there, line\\nbreak, \\@at, \\?question, it\\'s \\\"quoted\\\" \\\\"));
+        assertEquals("caf\u00e9 \u2014 ok",
+                ValuesOverlayCompiler.collectString("caf\\u00e9 \\u2014 ok"));
+        assertEquals("", ValuesOverlayCompiler.collectString(""));
+        assertEquals("it's", ValuesOverlayCompiler.collectString("\"it's\""));
+        // aapt rejects these
+        assertNull(ValuesOverlayCompiler.collectString("it's"));
+        assertNull(ValuesOverlayCompiler.collectString("\"open"));
+        assertNull(ValuesOverlayCompiler.collectString("\\u00e"));
+    }
+
+    private Map<String, byte[]> compileFixture() throws Exception {
+        final byte[] apk = mCompiler.compile(CompiledResources.getFixture(FIXTURE).getPath());
+        assertNotNull(apk);
+        return CompiledResources.unzip(apk);
+    }
+
+    /**
+     * Compiles the fixture manifest with a single resource file.
+     */
+    private byte[] compile(String path, String content) throws Exception {
+        final File overlay = mTemp.newFolder();
+        FileUtils.copyFile(new File(CompiledResources.getFixture(FIXTURE),
+                "AndroidManifest.xml"), new File(overlay, "AndroidManifest.xml"));
+        FileUtils.writeStringToFile(new File(overlay, "res/" + path),
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" + content,
+                StandardCharsets.UTF_8);
+        return mCompiler.compile(overlay.getPath());
+    }
+
+    private static void assertValue(int dataType, int data, ResourceTableWriter.Value value) {
+        assertNotNull(value);
+        assertEquals(String.format("0x%02x 0x%08x", dataType, data),
+                String.format("0x%02x 0x%08x", value.dataType, value.data));
+    }
+}